@@ -1,36 +1,155 @@
 package com.winrun;
 
+import com.winrun.bot.ImageWarmer;
+import com.winrun.bot.SendScheduler;
 import com.winrun.bot.WinrunBot;
 import com.winrun.db.Database;
+import com.winrun.db.WriteQueue;
 import com.winrun.integrations.BitrixClient;
+import com.winrun.integrations.CatalogSync;
+import com.winrun.integrations.LeadStatusSync;
+import com.winrun.integrations.OutboxWorker;
 import com.winrun.integrations.RobokassaService;
+import com.winrun.metrics.Metrics;
+import com.winrun.repo.DropCounter;
+import com.winrun.repo.FileIdRepo;
 import com.winrun.repo.OrderRepo;
+import com.winrun.repo.OutboxRepo;
 import com.winrun.repo.ProductRepo;
+import com.winrun.repo.ReservationSweeper;
+import com.winrun.repo.SessionStore;
 import com.winrun.web.WebServer;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
+import java.util.List;
+
 public class App {
     public static void main(String[] args) throws Exception {
         Config cfg = new Config();
+        // Конфигурацию проверяем до запуска сервера, планировщиков и прогрева — иначе падаем с полузапущенными потоками
+        if (cfg.webhookMode() && cfg.webhookSecret().isBlank())
+            throw new IllegalStateException("TELEGRAM_WEBHOOK_SECRET is required in webhook mode");
         Database db = new Database(cfg);
         db.initSchema();
 
+        Metrics metrics = new Metrics();
+        metrics.gauge("db.statement_cache.hits", db::statementCacheHits);
+        metrics.gauge("db.statement_cache.misses", db::statementCacheMisses);
+
+        WriteQueue writes = new WriteQueue(db, cfg.writeBatchMax(), cfg.writeBatchDelayMs());
+        metrics.gauge("db.write_queue.depth", writes::queueDepth);
+        metrics.gauge("db.write_queue.batches", writes::batches);
+        metrics.gauge("db.write_queue.mutations", writes::mutations);
+        metrics.gauge("db.write_queue.failures", writes::failures);
+
         ProductRepo productRepo = new ProductRepo(db);
-        OrderRepo orderRepo = new OrderRepo(db);
+        OrderRepo orderRepo = new OrderRepo(db, writes, new DropCounter(cfg.dropLimit()));
+        orderRepo.seedDropCounter();
+        metrics.gauge("drop.used", orderRepo.drop()::used);
+        metrics.gauge("drop.limit", orderRepo.drop()::limit);
+
+        ReservationSweeper sweeper = new ReservationSweeper(orderRepo, cfg.reservationTtlMinutes());
+        sweeper.start(cfg.reservationSweepSeconds());
+        metrics.gauge("drop.reservations_expired", sweeper::expired);
 
-        BitrixClient bitrix = new BitrixClient(cfg, productRepo, orderRepo);
+        BitrixClient bitrix = new BitrixClient(cfg);
+        bitrix.register(metrics, "bitrix.http");
         RobokassaService robokassa = new RobokassaService(cfg, orderRepo, bitrix);
 
+        // лиды из outbox: заказ и запись о лиде коммитятся вместе, доставка в Bitrix — фоном с повтором
+        OutboxRepo outboxRepo = new OutboxRepo(db, writes);
+        OutboxWorker outbox = new OutboxWorker(outboxRepo, orderRepo, bitrix,
+                cfg.outboxParallelism(), cfg.outboxMaxAttempts(), cfg.outboxBackoffMs(), cfg.outboxRetentionDays());
+        outbox.start(cfg.outboxPollMs());
+        metrics.gauge("bitrix.outbox.delivered", outbox::delivered);
+        metrics.gauge("bitrix.outbox.retried", outbox::retried);
+        metrics.gauge("bitrix.outbox.dead", outbox::dead);
+        metrics.gauge("bitrix.outbox.pending", outbox::pending);
+        metrics.gauge("bitrix.outbox.purged", outbox::purged);
+
+        // статусы лидов: push из вебхука Bitrix и фоновое обновление устаревших, чтение всегда из БД
+        LeadStatusSync statusSync = new LeadStatusSync(bitrix, orderRepo, cfg.bitrixStatusTtlSeconds(), cfg.bitrixStatusTimeoutMs());
+        metrics.gauge("bitrix.status_sync.events", statusSync::events);
+        metrics.gauge("bitrix.status_sync.ignored", statusSync::ignored);
+        metrics.gauge("bitrix.status_sync.refreshes", statusSync::refreshes);
+        metrics.gauge("bitrix.status_sync.changes", statusSync::changes);
+        metrics.gauge("bitrix.status_sync.cached", statusSync::cached);
+
+        FileIdRepo fileIds = new FileIdRepo(db, writes);
+        System.out.println("Loaded " + fileIds.load() + " cached Telegram file_ids");
+        metrics.gauge("images.file_ids", fileIds::size);
+
+        SessionStore sessions = new SessionStore(db, writes, cfg.sessionCacheMax(), cfg.sessionIdleMinutes(), cfg.sessionRetentionDays());
+        sessions.start(cfg.sessionFlushSeconds());
+        metrics.gauge("sessions.cached", sessions::size);
+        metrics.gauge("sessions.approx_bytes", sessions::approxBytes);
+        metrics.gauge("sessions.hits", sessions::hits);
+        metrics.gauge("sessions.loads", sessions::loads);
+        metrics.gauge("sessions.evictions", sessions::evictions);
+        metrics.gauge("sessions.flushed", sessions::flushed);
+        // несохранённые сессии и итоги доставки outbox сбрасываются до закрытия очереди записи
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> { outbox.close(); statusSync.close(); sessions.close(); writes.close(); db.close(); }));
+
         // Telegram bot
-        WinrunBot bot = new WinrunBot(cfg, productRepo, orderRepo, bitrix, robokassa);
-        TelegramBotsApi api = new TelegramBotsApi(DefaultBotSession.class);
-        api.registerBot(bot);
+        WinrunBot bot = WinrunBot.create(cfg, productRepo, orderRepo, outboxRepo, bitrix, statusSync, robokassa, fileIds, sessions);
+
+        statusSync.onChange(bot::notifyStatusChanged);
+
+        // каталог из Bitrix по расписанию (CATALOG_SYNC_MINUTES); бот читает снимок и прогона не ждёт
+        CatalogSync catalogSync = new CatalogSync(cfg, bitrix, productRepo);
+        metrics.gauge("catalog.sync.runs", catalogSync::runs);
+        metrics.gauge("catalog.sync.failures", catalogSync::failures);
+        metrics.gauge("catalog.sync.last_products", catalogSync::lastProducts);
+        metrics.gauge("catalog.sync.last_changed", catalogSync::lastChanged);
+        metrics.gauge("catalog.sync.last_duration_ms", catalogSync::lastDurationMs);
+        catalogSync.start();
+
+        bot.dispatcher().latency().register(metrics, "bot.update_latency");
+        metrics.gauge("bot.active_chats", bot.dispatcher()::activeChats);
+        metrics.gauge("telegram.send.queue_depth", bot.sender()::queueDepth);
+        for (SendScheduler.Priority p : SendScheduler.Priority.values())
+            metrics.gauge("telegram.send.queue_depth." + p.name().toLowerCase(), () -> bot.sender().queueDepth(p));
+        metrics.gauge("telegram.send.sent", bot.sender()::sent);
+        metrics.gauge("telegram.send.throttled_429", bot.sender()::throttled);
+        metrics.gauge("telegram.send.failed", bot.sender()::failed);
+        metrics.gauge("bot.render_cache.rebuilds", bot.render()::rebuilds);
+        metrics.gauge("bot.callbacks.duplicates", bot.callbacks()::duplicates);
+        bot.callbackTimings().register(metrics, "bot.callback");
+        bot.flow().register(metrics, "bot.flow");
+        metrics.gauge("images.prefetch.hits", bot.prefetcher()::hits);
+        metrics.gauge("images.prefetch.misses", bot.prefetcher()::misses);
+        metrics.gauge("images.prefetch.hit_rate", bot.prefetcher()::hitRate);
+        metrics.gauge("images.prefetch.joined", bot.prefetcher()::joined);
+        metrics.gauge("images.prefetch.uploaded", bot.prefetcher()::uploaded);
+        metrics.gauge("images.prefetch.dropped", bot.prefetcher()::dropped);
 
-        // Web server for payment callbacks
-        WebServer server = new WebServer(cfg, robokassa, orderRepo, bot);
+        // Web server for payment callbacks (and Telegram webhook) — до прогрева: /health и Robokassa не ждут картинок
+        WebServer server = new WebServer(cfg, robokassa, statusSync, orderRepo, bot, metrics);
         server.start();
 
+        // Картинки прогреваем до приёма апдейтов, чтобы покупатель не ждал загрузок
+        ImageWarmer warmer = bot.imageWarmer();
+        if (warmer.hasCacheChat()) {
+            System.out.println("Image warm-up: uploaded " + warmer.warmAll(cfg.imageWarmupTimeoutSeconds()) + " images");
+            productRepo.onChange(warmer::warmAllAsync);
+        }
+
+        if (!cfg.webhookMode()) {
+            // registerBot сам снимает вебхук перед запуском поллинга
+            TelegramBotsApi api = new TelegramBotsApi(DefaultBotSession.class);
+            api.registerBot(bot);
+        }
+
+        // Вебхук регистрируем, когда маршрут уже слушает
+        if (cfg.webhookMode()) {
+            SetWebhook hook = new SetWebhook(cfg.basePublicUrl() + WebServer.TELEGRAM_WEBHOOK_PATH);
+            hook.setSecretToken(cfg.webhookSecret());
+            hook.setAllowedUpdates(List.of("message", "callback_query"));
+            bot.execute(hook);
+        }
+
         System.out.println("Winrun bot started. Health: " + cfg.basePublicUrl() + "/health");
     }
 }
\ No newline at end of file
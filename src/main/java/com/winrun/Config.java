@@ -8,20 +8,68 @@ public class Config {
     /* === Telegram === */
     public String botToken()     { return env.get("TELEGRAM_BOT_TOKEN", "8314884816:AAGZpXjPvASyl3RYLiSLQjMGothXQ81aZTc"); }
     public String botUsername()  { return env.get("TELEGRAM_BOT_USERNAME", "WinrunDrop_bot"); }
+    /** polling — long polling через DefaultBotSession, webhook — апдейты на BASE_PUBLIC_URL + /telegram/webhook */
+    public boolean webhookMode() { return "webhook".equalsIgnoreCase(env.get("TELEGRAM_MODE", "polling").trim()); }
+    public String webhookSecret(){ return env.get("TELEGRAM_WEBHOOK_SECRET", ""); }
+    /** Лимиты исходящих сообщений: всего в секунду, на один чат в секунду и запас на всплеск в чате */
+    public double sendGlobalRate() { return Double.parseDouble(env.get("TELEGRAM_SEND_GLOBAL_RATE", "30")); }
+    public double sendChatRate()   { return Double.parseDouble(env.get("TELEGRAM_SEND_CHAT_RATE", "1")); }
+    public int    sendChatBurst()  { return Integer.parseInt(env.get("TELEGRAM_SEND_CHAT_BURST", "3")); }
+    /** Окно, в котором повторное нажатие той же инлайн-кнопки отбрасывается, мс (0 — не отбрасывать) */
+    public long   callbackDedupMillis() { return Long.parseLong(env.get("CALLBACK_DEDUP_MS", "1500")); }
+    /** Потоки HTTP-клиента бота для executeAsync (по умолчанию в библиотеке — один) */
+    public int    telegramHttpThreads() { return Integer.parseInt(env.get("TELEGRAM_HTTP_THREADS", "16")); }
 
     /* === App === */
     public int    serverPort()   { return Integer.parseInt(env.get("SERVER_PORT", "8080")); }
+    /** Токен для /metrics (заголовок Authorization: Bearer ...); пустой — маршрут выключен */
+    public String metricsToken() { return env.get("METRICS_TOKEN", ""); }
     public String basePublicUrl(){ return env.get("BASE_PUBLIC_URL", "http://localhost:8080"); }
     public String sqlitePath()   { return env.get("SQLITE_PATH", "winrun.db"); }
+    public int    sqliteReaders(){ return Integer.parseInt(env.get("SQLITE_READERS", "4")); }
+    /** dev/CI: полное сканирование в запросах горячего пути после миграций — ошибка старта, а не предупреждение */
+    public boolean sqliteStrictPlans() { return Boolean.parseBoolean(env.get("SQLITE_STRICT_PLANS", "false")); }
+    public int    sqliteCacheKb(){ return Integer.parseInt(env.get("SQLITE_CACHE_KB", "16384")); }
+    public int    sqliteMmapMb() { return Integer.parseInt(env.get("SQLITE_MMAP_MB", "128")); }
+    public int    writeBatchMax()    { return Integer.parseInt(env.get("DB_WRITE_BATCH_MAX", "64")); }
+    public long   writeBatchDelayMs(){ return Long.parseLong(env.get("DB_WRITE_BATCH_DELAY_MS", "5")); }
+    /** Сессии чатов: сколько держим в памяти, через сколько минут простоя выгружаем, как часто сбрасываем в БД */
+    public int    sessionCacheMax()      { return Integer.parseInt(env.get("SESSION_CACHE_MAX", "10000")); }
+    public int    sessionIdleMinutes()   { return Integer.parseInt(env.get("SESSION_IDLE_MINUTES", "30")); }
+    public int    sessionFlushSeconds()  { return Integer.parseInt(env.get("SESSION_FLUSH_SECONDS", "2")); }
+    public int    sessionRetentionDays() { return Integer.parseInt(env.get("SESSION_RETENTION_DAYS", "30")); }
 
     /* === Drop settings === */
     public int    dropLimit()    { return Integer.parseInt(env.get("DROP_LIMIT", "300")); }
     public int    priceRub()     { return Integer.parseInt(env.get("PRICE_RUB", "8990")); }
+    /** Сколько минут держим неоплаченную бронь, прежде чем вернуть место в дроп */
+    public int    reservationTtlMinutes() { return Integer.parseInt(env.get("RESERVATION_TTL_MINUTES", "30")); }
+    public int    reservationSweepSeconds(){ return Integer.parseInt(env.get("RESERVATION_SWEEP_SECONDS", "60")); }
 
     /* === Bitrix (входящий вебхук) === */
     public String bitrixBase()        { return env.get("BITRIX_WEBHOOK_BASE", ""); }
     public String bitrixLeadSource()  { return env.get("BITRIX_LEAD_SOURCE_ID", "WEB"); }
     public String bitrixTag()         { return env.get("BITRIX_TAG", "Предзаказ — Дроп 1 (300 пар)"); }
+    /** HTTP к Bitrix: таймауты, сколько запросов одновременно, после скольких сбоев подряд и на сколько размыкаться */
+    public long   bitrixConnectTimeoutMs() { return Long.parseLong(env.get("BITRIX_CONNECT_TIMEOUT_MS", "3000")); }
+    public long   bitrixReadTimeoutMs()    { return Long.parseLong(env.get("BITRIX_READ_TIMEOUT_MS", "5000")); }
+    public long   bitrixCallTimeoutMs()    { return Long.parseLong(env.get("BITRIX_CALL_TIMEOUT_MS", "10000")); }
+    public int    bitrixMaxConcurrent()    { return Integer.parseInt(env.get("BITRIX_MAX_CONCURRENT", "8")); }
+    public int    bitrixBreakerFailures()  { return Integer.parseInt(env.get("BITRIX_BREAKER_FAILURES", "5")); }
+    public long   bitrixBreakerOpenMs()    { return Long.parseLong(env.get("BITRIX_BREAKER_OPEN_MS", "30000")); }
+    /** Предел одного batch-запроса статусов; не успел — статусы остаются прежними до следующего обновления */
+    public long   bitrixStatusTimeoutMs() { return Long.parseLong(env.get("BITRIX_STATUS_TIMEOUT_MS", "1500")); }
+    /** Исходящий вебхук Bitrix (ONCRMLEADUPDATE): токен приложения из настроек вебхука; пустой — маршрут выключен */
+    public String bitrixOutboundToken()    { return env.get("BITRIX_OUTBOUND_TOKEN", ""); }
+    /** Сколько статус лида считается свежим, прежде чем «Мои заказы» попросят фоновое обновление */
+    public int    bitrixStatusTtlSeconds() { return Integer.parseInt(env.get("BITRIX_STATUS_TTL_SECONDS", "300")); }
+    /** Outbox: лиды уходят в Bitrix фоновыми воркерами с повтором; задержка повтора растёт вдвое с каждой попыткой */
+    public int    outboxParallelism()  { return Integer.parseInt(env.get("OUTBOX_PARALLELISM", "2")); }
+    public int    outboxMaxAttempts()  { return Integer.parseInt(env.get("OUTBOX_MAX_ATTEMPTS", "10")); }
+    public long   outboxBackoffMs()    { return Long.parseLong(env.get("OUTBOX_BACKOFF_MS", "5000")); }
+    public long   outboxPollMs()       { return Long.parseLong(env.get("OUTBOX_POLL_MS", "1000")); }
+    /** Сколько дней хранить доставленные (DONE) записи outbox; DEAD остаются для ручного разбора */
+    public int    outboxRetentionDays() { return Integer.parseInt(env.get("OUTBOX_RETENTION_DAYS", "7")); }
 
     /* === Изображения ===
        Базовый путь к локальным картинкам (по умолчанию — текущая рабочая директория).
@@ -29,8 +77,29 @@ public class Config {
     */
     public String imagesBasePath()    { return env.get("IMAGES_BASE_PATH", "/app/images"); }
 
-    /* === Совместимость (если где-то в коде ещё используется) === */
-    public String bitrixProductXmlId(){ return env.get("BITRIX_PRODUCT_XML_ID", "212"); }
+    /** Служебный чат для загрузки картинок и получения file_id (пусто — без прогрева, холодные картинки уходят покупателю вложениями) */
+    public Long   cacheChatId() {
+        String v = env.get("TELEGRAM_CACHE_CHAT_ID", "");
+        return v == null || v.isBlank() ? null : Long.parseLong(v.trim());
+    }
+    public int    imageWarmupParallelism() { return Integer.parseInt(env.get("IMAGE_WARMUP_PARALLELISM", "3")); }
+    /** Темп отправки в кэш-чат, сообщений/с; одновременно в полёте — IMAGE_WARMUP_PARALLELISM загрузок */
+    public double cacheChatRate() { return Double.parseDouble(env.get("TELEGRAM_CACHE_CHAT_RATE", "1")); }
+    public int    imageWarmupTimeoutSeconds() { return Integer.parseInt(env.get("IMAGE_WARMUP_TIMEOUT_SECONDS", "180")); }
+    /** Карусель вариантов: edit — одна карточка-фото, ◀/▶ правят её на месте; album — новый альбом и карточка на каждый клик */
+    public boolean carouselEdit() { return !"album".equalsIgnoreCase(env.get("CATALOG_CAROUSEL", "edit").trim()); }
+    /** Фоновая предзагрузка соседних вариантов в кэш-чат (0 — выключена) */
+    public int    prefetchParallelism() { return Integer.parseInt(env.get("IMAGE_PREFETCH_PARALLELISM", "2")); }
+
+    /* === Синхронизация каталога из Bitrix (0 минут — выключена) === */
+    public int    catalogSyncMinutes()      { return Integer.parseInt(env.get("CATALOG_SYNC_MINUTES", "0")); }
+    public String bitrixCatalogIblockId()   { return env.get("BITRIX_CATALOG_IBLOCK_ID", ""); }
+    /** Инфоблок торговых предложений; пустой — варианты берутся из локального каталога */
+    public String bitrixOffersIblockId()    { return env.get("BITRIX_OFFERS_IBLOCK_ID", ""); }
+    /** Свойство предложения с цветом, например property45; пустое — цвет из названия предложения */
+    public String bitrixColorProperty()     { return env.get("BITRIX_COLOR_PROPERTY", ""); }
+    /** Только товар с этим внешним кодом (XML_ID); пустой — весь активный каталог */
+    public String bitrixProductXmlId()      { return env.get("BITRIX_PRODUCT_XML_ID", ""); }
 
     /* === Robokassa === */
     public String rkLogin()   { return env.get("ROBOKASSA_LOGIN", ""); }
@@ -0,0 +1,131 @@
+package com.winrun.bot;
+
+import com.winrun.repo.FileIdRepo;
+import org.telegram.telegrambots.meta.api.methods.ParseMode;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageMedia;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.media.InputMedia;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaPhoto;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Отправка альбома одним запросом: закэшированные картинки идут по file_id, холодные — вложениями
+ * в тот же sendMediaGroup. file_id новых картинок снимаются с ответа (сообщения идут в порядке медиа).
+ * Для карусели — карточка-фото с подписью и её правка на месте (editMessageMedia) по тем же правилам кэша.
+ */
+public class AlbumSender {
+    static final int MAX_ALBUM = 5;
+
+    private final AbsSender tg;
+    private final ImageRefs images;
+    private final FileIdRepo fileIds;
+
+    public AlbumSender(AbsSender tg, ImageRefs images, FileIdRepo fileIds) {
+        this.tg = tg; this.images = images; this.fileIds = fileIds;
+    }
+
+    /** Отправить до 5 картинок; возвращает отправленные сообщения (пусто — ни одной картинки не нашлось) */
+    public List<Message> send(long chatId, List<String> refs) throws TelegramApiException {
+        List<InputMedia> media = new ArrayList<>();
+        List<String> newKeys = new ArrayList<>(); // ключ для каждой позиции; null — уже был file_id
+        for (String ref : refs) {
+            if (media.size() == MAX_ALBUM) break;
+            if (ref == null || ref.isBlank()) continue;
+            String key = images.contentKey(ref);
+            if (key == null) {
+                System.out.println("[IMG] Not found: " + images.resolveLocalFile(ref).getAbsolutePath());
+                continue;
+            }
+            newKeys.add(fileIds.get(key) == null ? key : null);
+            media.add(photo(ref, key));
+        }
+
+        List<Message> sent = new ArrayList<>();
+        if (media.size() >= 2) {
+            SendMediaGroup group = new SendMediaGroup();
+            group.setChatId(String.valueOf(chatId));
+            group.setMedias(media);
+            sent.addAll(tg.execute(group));
+        } else if (media.size() == 1) {
+            sent.add(tg.execute(new SendPhoto(String.valueOf(chatId), asInputFile(media.get(0)))));
+        }
+
+        for (int i = 0; i < sent.size() && i < newKeys.size(); i++) {
+            String key = newKeys.get(i);
+            if (key != null) fileIds.put(key, ImageWarmer.largestFileId(sent.get(i)));
+        }
+        return sent;
+    }
+
+    /** Первая существующая картинка из refs; null — ни одной */
+    public String firstExisting(List<String> refs) {
+        for (String ref : refs) if (ref != null && !ref.isBlank() && images.contentKey(ref) != null) return ref;
+        return null;
+    }
+
+    /** Карточка-фото: картинка ref с подписью (Markdown) и клавиатурой */
+    public Message sendCard(long chatId, String ref, String caption, InlineKeyboardMarkup kb) throws TelegramApiException {
+        String key = images.contentKey(ref);
+        SendPhoto sp = new SendPhoto(String.valueOf(chatId), asInputFile(photo(ref, key)));
+        sp.setCaption(caption);
+        sp.setParseMode(ParseMode.MARKDOWN);
+        sp.setReplyMarkup(kb);
+        Message msg = tg.execute(sp);
+        remember(key, msg);
+        return msg;
+    }
+
+    /**
+     * Заменить фото, подпись и клавиатуру карточки одним editMessageMedia.
+     * «message is not modified» (тот же вариант) считается успехом; остальные ошибки — наверх.
+     */
+    public void editCard(long chatId, int messageId, String ref, String caption, InlineKeyboardMarkup kb) throws TelegramApiException {
+        String key = images.contentKey(ref);
+        InputMediaPhoto photo = photo(ref, key);
+        photo.setCaption(caption);
+        photo.setParseMode(ParseMode.MARKDOWN);
+        EditMessageMedia edit = new EditMessageMedia();
+        edit.setChatId(String.valueOf(chatId));
+        edit.setMessageId(messageId);
+        edit.setMedia(photo);
+        edit.setReplyMarkup(kb);
+        try {
+            if (tg.execute(edit) instanceof Message msg) remember(key, msg);
+        } catch (TelegramApiRequestException e) {
+            if (e.getApiResponse() == null || !e.getApiResponse().contains("message is not modified")) throw e;
+        }
+    }
+
+    /** По file_id из кэша, иначе URL или вложение файла */
+    private InputMediaPhoto photo(String ref, String key) {
+        InputMediaPhoto photo = new InputMediaPhoto();
+        String cached = key == null ? null : fileIds.get(key);
+        if (cached != null && !cached.isBlank()) {
+            photo.setMedia(cached);
+        } else if (images.isHttpUrl(ref)) {
+            photo.setMedia(ref);
+        } else {
+            File f = images.resolveLocalFile(ref);
+            photo.setMedia(f, f.getName());
+        }
+        return photo;
+    }
+
+    private void remember(String key, Message msg) {
+        if (key != null && fileIds.get(key) == null) fileIds.put(key, ImageWarmer.largestFileId(msg));
+    }
+
+    private static InputFile asInputFile(InputMedia m) {
+        return m.isNewMedia() ? new InputFile(m.getNewMediaFile(), m.getMediaName()) : new InputFile(m.getMedia());
+    }
+}
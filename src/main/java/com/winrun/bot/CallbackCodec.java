@@ -0,0 +1,82 @@
+package com.winrun.bot;
+
+import com.winrun.metrics.LatencyHistogram;
+import com.winrun.metrics.Metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Компактный callback_data: первый символ — код операции, остальное — аргумент ("M1001", "S42", "DSDEK").
+ * Разбор — один взгляд в таблицу по коду символа, без regex и поиска по строке.
+ * Кнопки со старыми строками ("model:1001", "vnext", ...) ещё висят в чатах. Старые строки начинаются
+ * со строчной буквы, а коды операций — заглавные, так что форматы не пересекаются.
+ */
+public final class CallbackCodec {
+
+    public enum Op {
+        NOOP('_'), LEGAL('L'), OFFER('O'), GO_MENU('G'), CHOOSE_MODEL('C'),
+        MODEL('M'), VNEXT('N'), VPREV('P'), PICK_MODEL('K'), SIZE('S'), DELIVERY('D'), CONFIRM('F');
+
+        final char code;
+        Op(char code) { this.code = code; }
+    }
+
+    /** Разобранный колбэк; аргумент — хвост data после кода операции */
+    public record Callback(Op op, String data, int argFrom) {
+        public String arg() { return data.substring(argFrom); }
+        public int intArg() { return Integer.parseInt(data, argFrom, data.length(), 10); }
+    }
+
+    private static final Op[] BY_CODE = new Op[128];
+    static {
+        for (Op op : Op.values()) {
+            if (BY_CODE[op.code] != null) throw new IllegalStateException("Duplicate callback code " + op.code);
+            BY_CODE[op.code] = op;
+        }
+    }
+
+    /** Старые строки без аргумента */
+    private static final Map<String, Op> LEGACY = Map.of(
+            "noop", Op.NOOP, "legal", Op.LEGAL, "offer", Op.OFFER, "goMenu", Op.GO_MENU,
+            "chooseModel", Op.CHOOSE_MODEL, "vnext", Op.VNEXT, "vprev", Op.VPREV,
+            "pickModel", Op.PICK_MODEL, "order:confirm", Op.CONFIRM);
+
+    private CallbackCodec() {}
+
+    public static String encode(Op op) { return String.valueOf(op.code); }
+
+    public static String encode(Op op, Object arg) { return op.code + String.valueOf(arg); }
+
+    /** null — неизвестный колбэк */
+    public static Callback decode(String data) {
+        if (data == null || data.isEmpty()) return null;
+        char c = data.charAt(0);
+        Op op = c < BY_CODE.length ? BY_CODE[c] : null;
+        return op != null ? new Callback(op, data, 1) : decodeLegacy(data);
+    }
+
+    private static Callback decodeLegacy(String data) {
+        Op op = LEGACY.get(data);
+        if (op != null) return new Callback(op, data, data.length());
+        if (data.startsWith("model:")) return new Callback(Op.MODEL, data, 6);
+        if (data.startsWith("size:")) return new Callback(Op.SIZE, data, 5);
+        if (data.startsWith("del:")) return new Callback(Op.DELIVERY, data, 4); // del:SDEK / del:YANDEX
+        return null;
+    }
+
+    /** Время обработки колбэков по операциям */
+    public static final class Timings {
+        private final EnumMap<Op, LatencyHistogram> byOp = new EnumMap<>(Op.class);
+
+        public Timings() {
+            for (Op op : Op.values()) byOp.put(op, new LatencyHistogram());
+        }
+
+        public void record(Op op, long nanos) { byOp.get(op).recordNanos(nanos); }
+
+        public void register(Metrics metrics, String prefix) {
+            byOp.forEach((op, h) -> h.register(metrics, prefix + "." + op.name().toLowerCase()));
+        }
+    }
+}
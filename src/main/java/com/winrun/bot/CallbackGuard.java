@@ -0,0 +1,51 @@
+package com.winrun.bot;
+
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Отсев повторных нажатий: одинаковый колбэк (чат, сообщение, data) в пределах окна обрабатывается один раз.
+ * Просроченные ключи вычищаются попутно, раз в SWEEP_EVERY проверок.
+ */
+public class CallbackGuard {
+    private static final int SWEEP_EVERY = 256;
+
+    private record Key(long chatId, int messageId, String data) {}
+
+    private final long windowNanos;
+    private final Map<Key, Long> seen = new ConcurrentHashMap<>();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final LongAdder duplicates = new LongAdder();
+
+    public CallbackGuard(long windowMillis) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+    }
+
+    /** true — первое нажатие в окне, его надо обработать; false — повтор */
+    public boolean firstTap(CallbackQuery q) {
+        if (windowNanos == 0 || q.getMessage() == null) return true;
+        long now = System.nanoTime();
+        if (calls.incrementAndGet() % SWEEP_EVERY == 0) sweep(now);
+
+        Key key = new Key(q.getMessage().getChatId(), q.getMessage().getMessageId(), String.valueOf(q.getData()));
+        boolean[] first = {false};
+        seen.compute(key, (k, until) -> {
+            if (until != null && until - now > 0) return until;
+            first[0] = true;
+            return now + windowNanos;
+        });
+        if (!first[0]) duplicates.increment();
+        return first[0];
+    }
+
+    public long duplicates() { return duplicates.sum(); }
+
+    private void sweep(long now) {
+        seen.entrySet().removeIf(e -> e.getValue() - now <= 0);
+    }
+}
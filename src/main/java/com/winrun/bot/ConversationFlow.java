@@ -0,0 +1,81 @@
+package com.winrun.bot;
+
+import com.winrun.metrics.LatencyHistogram;
+import com.winrun.metrics.Metrics;
+import com.winrun.model.ConversationState;
+import com.winrun.model.Session;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.winrun.model.ConversationState.*;
+
+/**
+ * Таблица переходов сценария: для каждого шага — какие события в нём допустимы и куда они ведут.
+ * Событие, которого нет в таблице для текущего шага, отклоняется (например, старая кнопка размера после оплаты).
+ * На каждый переход пишется время, проведённое в исходном шаге (от прошлого перехода до этого события).
+ */
+public final class ConversationFlow {
+
+    public enum Event {
+        RESET, OPEN_CATALOG, PICK_MODEL, SIZE_CHOSEN, NAME_ENTERED, PHONE_ENTERED,
+        DELIVERY_CHOSEN, DELIVERY_ENTERED, PAYMENT_ISSUED
+    }
+
+    private static final Set<ConversationState> ANY = EnumSet.allOf(ConversationState.class);
+    /** Шаги, где уже выбрана модель и идёт оформление — отсюда можно вернуться к выбору размера */
+    private static final Set<ConversationState> CHECKOUT = EnumSet.of(
+            SELECT_SIZE, ENTER_NAME, ENTER_PHONE, CHOOSE_DELIVERY, ENTER_DELIVERY_FIELDS, REVIEW);
+
+    private final EnumMap<ConversationState, EnumMap<Event, ConversationState>> table = new EnumMap<>(ConversationState.class);
+    private final EnumMap<Event, LatencyHistogram> timings = new EnumMap<>(Event.class);
+    private final LongAdder rejected = new LongAdder();
+
+    public ConversationFlow() {
+        for (ConversationState s : ConversationState.values()) table.put(s, new EnumMap<>(Event.class));
+        for (Event e : Event.values()) timings.put(e, new LatencyHistogram());
+
+        on(ANY, Event.RESET, IDLE);
+        on(ANY, Event.OPEN_CATALOG, SELECT_PRODUCT);
+        on(ANY, Event.PICK_MODEL, SELECT_SIZE);            // «Выбрать ✅» на любой карточке
+        on(CHECKOUT, Event.SIZE_CHOSEN, ENTER_NAME);
+        on(EnumSet.of(ENTER_NAME), Event.NAME_ENTERED, ENTER_PHONE);
+        on(EnumSet.of(ENTER_PHONE), Event.PHONE_ENTERED, CHOOSE_DELIVERY);
+        on(EnumSet.of(CHOOSE_DELIVERY, ENTER_DELIVERY_FIELDS, REVIEW), Event.DELIVERY_CHOSEN, ENTER_DELIVERY_FIELDS);
+        on(EnumSet.of(ENTER_DELIVERY_FIELDS), Event.DELIVERY_ENTERED, REVIEW);
+        on(EnumSet.of(REVIEW, PAYMENT_LINK_ISSUED), Event.PAYMENT_ISSUED, PAYMENT_LINK_ISSUED);
+    }
+
+    private void on(Set<ConversationState> from, Event e, ConversationState to) {
+        for (ConversationState s : from) table.get(s).put(e, to);
+    }
+
+    public boolean allows(ConversationState state, Event e) {
+        return table.get(state).containsKey(e);
+    }
+
+    /** Применить событие к сессии; false — в текущем шаге событие недопустимо, шаг не меняется */
+    public boolean fire(Session s, Event e) {
+        ConversationState to = table.get(s.state).get(e);
+        if (to == null) {
+            rejected.increment();
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (s.stateSince > 0) timings.get(e).recordNanos(TimeUnit.MILLISECONDS.toNanos(now - s.stateSince));
+        s.state = to;
+        s.stateSince = now;
+        return true;
+    }
+
+    public long rejected() { return rejected.sum(); }
+
+    /** Время в шаге перед каждым событием + счётчик отклонённых событий */
+    public void register(Metrics metrics, String prefix) {
+        timings.forEach((e, h) -> h.register(metrics, prefix + "." + e.name().toLowerCase()));
+        metrics.gauge(prefix + ".rejected", this::rejected);
+    }
+}
@@ -0,0 +1,164 @@
+package com.winrun.bot;
+
+import com.winrun.model.Product;
+import com.winrun.repo.FileIdRepo;
+import com.winrun.repo.ProductRepo;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Упреждающая загрузка картинок: после показа варианта i в фоне грузятся в кэш-чат варианты i±1
+ * и первый вариант соседних моделей — следующий клик ◀/▶ уже идёт по file_id.
+ * Пул и очередь ограничены (лишнее отбрасывается), одна картинка не грузится дважды одновременно:
+ * показ, заставший уже начатую загрузку, ждёт её (все вместе не дольше JOIN_BUDGET_MS), а не шлёт файл сам.
+ * Загрузки, ещё стоящие в очереди пула, не ждём — клик не должен висеть за чужой очередью.
+ * Без кэш-чата выключен — грузить заранее в чат покупателя нельзя.
+ */
+public class ImagePrefetcher {
+    private static final int QUEUE = 64;
+    private static final long JOIN_BUDGET_MS = 1000; // общий на все картинки показа
+
+    private final ImageWarmer warmer;
+    private final ProductRepo products;
+    private final ImageRefs images;
+    private final FileIdRepo fileIds;
+    private final AlbumSender albums;
+    private final boolean singlePhoto; // карусель показывает только основную картинку варианта
+    private final boolean enabled;
+    private final ThreadPoolExecutor pool;
+
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final Set<String> started = ConcurrentHashMap.newKeySet(); // из inFlight: загрузка уже идёт, а не ждёт в очереди
+    private final Set<String> prefetched = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder uploaded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public ImagePrefetcher(ImageWarmer warmer, ProductRepo products, ImageRefs images, FileIdRepo fileIds,
+                           AlbumSender albums, boolean singlePhoto, int parallelism) {
+        this.warmer = warmer;
+        this.products = products;
+        this.images = images;
+        this.fileIds = fileIds;
+        this.albums = albums;
+        this.singlePhoto = singlePhoto;
+        this.enabled = warmer.hasCacheChat() && parallelism > 0;
+        AtomicInteger n = new AtomicInteger();
+        int threads = Math.max(1, parallelism);
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE), r -> {
+            Thread t = new Thread(r, "image-prefetch-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, (r, ex) -> {
+            dropped.increment();
+            throw new RejectedExecutionException("Prefetch queue is full");
+        });
+    }
+
+    public boolean enabled() { return enabled; }
+
+    /** Картинки, которые уйдут в чат при показе варианта */
+    public List<String> shownRefs(Product.Variant v) {
+        List<String> refs = images.buildStrictRefs(v.image);
+        if (!singlePhoto) return refs;
+        String first = albums.firstExisting(refs);
+        return first == null ? List.of() : List.of(first);
+    }
+
+    /**
+     * Перед показом: учесть попадания и дождаться начатых загрузок этих картинок, все вместе не дольше JOIN_BUDGET_MS.
+     * Попадание — картинка из предзагруженных уже имеет file_id; промах — картинка холодная.
+     */
+    public void beforeShow(List<String> refs) {
+        if (!enabled()) return;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOIN_BUDGET_MS);
+        for (String ref : refs) {
+            String key = images.contentKey(ref);
+            if (key == null) continue;
+            if (fileIds.get(key) != null) {
+                if (prefetched.contains(key)) hits.increment();
+                continue;
+            }
+            misses.increment();
+            CompletableFuture<String> f = inFlight.get(key);
+            long left = deadline - System.nanoTime();
+            if (f == null || !started.contains(key) || left <= 0) continue;
+            joined.increment();
+            try {
+                f.get(left, TimeUnit.NANOSECONDS);
+            } catch (Exception ignore) {
+                // не дождались — покажем с загрузкой, как без предзагрузки
+            }
+        }
+    }
+
+    /** После показа варианта idx модели p: соседние варианты и первый вариант соседних моделей */
+    public void prefetchAround(Product p, int idx) {
+        if (!enabled() || p.variants == null || p.variants.isEmpty()) return;
+        int n = p.variants.size();
+        List<Product.Variant> next = new ArrayList<>();
+        if (n > 1) {
+            next.add(p.variants.get((idx + 1) % n));
+            if (n > 2) next.add(p.variants.get((idx - 1 + n) % n));
+        }
+        try {
+            List<Product> list = products.listActive();
+            int pos = list.indexOf(p);
+            if (pos >= 0) {
+                for (int d : new int[]{1, -1}) {
+                    int j = pos + d;
+                    if (j < 0 || j >= list.size()) continue;
+                    Product adj = list.get(j);
+                    if (adj.variants != null && !adj.variants.isEmpty()) next.add(adj.variants.get(0));
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("[IMG] Prefetch catalog read failed: " + e.getMessage());
+        }
+        for (Product.Variant v : next) for (String ref : shownRefs(v)) prefetch(ref);
+    }
+
+    public long hits()     { return hits.sum(); }
+    public long misses()   { return misses.sum(); }
+    public long joined()   { return joined.sum(); }
+    public long uploaded() { return uploaded.sum(); }
+    public long dropped()  { return dropped.sum(); }
+
+    /** Доля показов предзагруженных картинок среди всех картинок, которых не было в кэше без нас */
+    public double hitRate() {
+        long h = hits.sum(), m = misses.sum();
+        return h + m == 0 ? 0 : (double) h / (h + m);
+    }
+
+    private void prefetch(String ref) {
+        String key = images.contentKey(ref);
+        if (key == null || fileIds.get(key) != null) return;
+        CompletableFuture<String> f = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, f) != null) return; // уже грузится
+        f.whenComplete((fid, e) -> {
+            started.remove(key);
+            inFlight.remove(key, f);
+        });
+        try {
+            pool.execute(() -> {
+                started.add(key);
+                try {
+                    String fid = warmer.fileId(ref);
+                    if (fid != null) { prefetched.add(key); uploaded.increment(); }
+                    f.complete(fid);
+                } catch (Exception e) {
+                    f.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            f.complete(null);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.winrun.bot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ссылки на картинки вариантов: локальные файлы (относительно IMAGES_BASE_PATH) или http(s) URL.
+ * Для кэша file_id даёт ключ по содержимому: отредактированный файл с тем же именем получает новый ключ.
+ */
+public class ImageRefs {
+    private final String basePath;
+
+    /** Хэш считаем один раз на (путь, размер, mtime) */
+    private record Stamp(long size, long modified, String hash) {}
+    private final Map<String, Stamp> hashes = new ConcurrentHashMap<>();
+
+    public ImageRefs(String basePath) {
+        this.basePath = (basePath == null || basePath.isBlank()) ? "." : basePath;
+    }
+
+    public boolean isHttpUrl(String ref) {
+        return ref != null && (ref.startsWith("http://") || ref.startsWith("https://"));
+    }
+
+    public File resolveLocalFile(String ref) {
+        File f = new File(ref);
+        if (!f.isAbsolute()) f = new File(basePath, ref);
+        return f;
+    }
+
+    /** Новый порядок: 1, 4, 3, 5, 2 */
+    public List<String> buildStrictRefs(String mainFilename) {
+        List<String> out = new ArrayList<>();
+        if (mainFilename == null || mainFilename.isBlank()) return out;
+
+        String name = mainFilename.trim();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext  = dot > 0 ? name.substring(dot) : "";
+
+        out.add(base + ext);          // 1
+        out.add(base + "_4" + ext);   // 4
+        out.add(base + "_3" + ext);   // 3
+        out.add(base + "_5" + ext);   // 5
+        out.add(base + "_2" + ext);   // 2
+        return out;
+    }
+
+    /**
+     * Ключ кэша file_id: sha256 содержимого для локального файла, url:&lt;адрес&gt; для URL.
+     * null — файла нет.
+     */
+    public String contentKey(String ref) {
+        if (ref == null || ref.isBlank()) return null;
+        String r = ref.trim();
+        if (isHttpUrl(r)) return "url:" + r;
+
+        File f = resolveLocalFile(r);
+        if (!f.isFile()) return null;
+        String path = f.getAbsolutePath();
+        long size = f.length(), modified = f.lastModified();
+        Stamp st = hashes.get(path);
+        if (st != null && st.size() == size && st.modified() == modified) return st.hash();
+        try {
+            String hash = sha256(f);
+            hashes.put(path, new Stamp(size, modified, hash));
+            return hash;
+        } catch (IOException e) {
+            System.out.println("[IMG] Hash failed: " + path + " " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String sha256(File f) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(f.toPath())) {
+            int n;
+            while ((n = in.read(buf)) > 0) md.update(buf, 0, n);
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+}
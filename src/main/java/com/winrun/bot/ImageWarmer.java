@@ -0,0 +1,154 @@
+package com.winrun.bot;
+
+import com.winrun.model.Product;
+import com.winrun.repo.FileIdRepo;
+import com.winrun.repo.ProductRepo;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Прогрев file_id картинок каталога в служебном кэш-чате (TELEGRAM_CACHE_CHAT_ID),
+ * чтобы покупатель никогда не ждал загрузку фото. Прогрев идёт при старте (до регистрации бота)
+ * и после каждого изменения каталога, с ограниченным числом параллельных загрузок.
+ * Холодные картинки одного варианта уходят одним альбомом через {@link AlbumSender}.
+ * Загрузки идут через {@link SendScheduler} с фоновым приоритетом и не отнимают лимит у покупателей;
+ * у кэш-чата свой класс лимитов — до parallelism загрузок в полёте одновременно.
+ */
+public class ImageWarmer {
+    private final AbsSender tg;
+    private final SendScheduler sender;
+    private final ProductRepo products;
+    private final ImageRefs images;
+    private final FileIdRepo fileIds;
+    private final AlbumSender albums;
+    private final Long cacheChatId;
+    private final ExecutorService pool;
+
+    public ImageWarmer(AbsSender tg, SendScheduler sender, ProductRepo products, ImageRefs images, FileIdRepo fileIds,
+                       AlbumSender albums, Long cacheChatId, int parallelism, double cacheChatRate) {
+        this.tg = tg;
+        this.sender = sender;
+        this.products = products;
+        this.images = images;
+        this.fileIds = fileIds;
+        this.albums = albums;
+        this.cacheChatId = cacheChatId;
+        if (cacheChatId != null) {
+            int inFlight = Math.max(1, parallelism);
+            sender.configureChat(cacheChatId, cacheChatRate, inFlight, inFlight);
+        }
+        AtomicInteger n = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread t = new Thread(r, "image-warmup-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public boolean hasCacheChat() { return cacheChatId != null; }
+
+    /**
+     * file_id для ref: из кэша, иначе загрузка в кэш-чат. Только при заданном кэш-чате —
+     * без него холодные картинки уходят покупателю вложениями альбома ({@link AlbumSender}).
+     * null — картинки нет.
+     */
+    public String fileId(String ref) throws TelegramApiException {
+        if (!hasCacheChat()) throw new IllegalStateException("TELEGRAM_CACHE_CHAT_ID is not set");
+        String key = images.contentKey(ref);
+        if (key == null) {
+            System.out.println("[IMG] Not found: " + images.resolveLocalFile(ref).getAbsolutePath());
+            return null;
+        }
+        String cached = fileIds.get(key);
+        if (cached != null && !cached.isBlank()) return cached;
+
+        SendPhoto sp = new SendPhoto(String.valueOf(cacheChatId), inputFile(ref));
+        sp.setDisableNotification(true);
+        Message msg = SendScheduler.await(sender.submit(cacheChatId, SendScheduler.Priority.BACKGROUND, () -> tg.execute(sp)));
+        String fid = largestFileId(msg);
+        if (fid != null) fileIds.put(key, fid);
+        return fid;
+    }
+
+    /** Ссылки на картинки активного каталога по вариантам (основная + _2.._5) */
+    public List<List<String>> catalogRefs() {
+        List<List<String>> out = new ArrayList<>();
+        try {
+            for (Product p : products.listActive()) {
+                if (p.variants == null) continue;
+                for (Product.Variant v : p.variants) out.add(images.buildStrictRefs(v.image));
+            }
+        } catch (Exception e) {
+            System.out.println("[IMG] Catalog read failed: " + e.getMessage());
+        }
+        return out;
+    }
+
+    /** Прогреть весь каталог и дождаться окончания (не дольше timeoutSeconds); возвращает число загруженных картинок */
+    public int warmAll(long timeoutSeconds) {
+        if (!hasCacheChat()) return 0;
+        List<Future<Integer>> jobs = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (List<String> variantRefs : catalogRefs()) {
+            List<String> cold = new ArrayList<>();
+            for (String ref : variantRefs) {
+                String key = images.contentKey(ref);
+                if (key != null && fileIds.get(key) == null && seen.add(key)) cold.add(ref);
+            }
+            if (cold.isEmpty()) continue;
+            jobs.add(pool.submit(() -> SendScheduler.await(
+                    sender.submit(cacheChatId, SendScheduler.Priority.BACKGROUND, () -> albums.send(cacheChatId, cold))).size()));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        int uploaded = 0;
+        for (Future<Integer> f : jobs) {
+            try {
+                uploaded += f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                System.out.println("[IMG] Warm-up timed out, the rest continues in background");
+                break;
+            } catch (Exception e) {
+                System.out.println("[IMG] Warm-up upload failed: " + e.getMessage());
+            }
+        }
+        return uploaded;
+    }
+
+    /** Прогрев в фоне — после изменения каталога */
+    public void warmAllAsync() {
+        if (!hasCacheChat()) return;
+        CompletableFuture.runAsync(() -> {
+            int n = warmAll(TimeUnit.HOURS.toSeconds(1));
+            if (n > 0) System.out.println("[IMG] Warmed " + n + " images after catalog change");
+        });
+    }
+
+    private InputFile inputFile(String ref) {
+        if (images.isHttpUrl(ref)) return new InputFile(ref);
+        File f = images.resolveLocalFile(ref);
+        return new InputFile(f, f.getName());
+    }
+
+    static String largestFileId(Message msg) {
+        if (msg == null || msg.getPhoto() == null || msg.getPhoto().isEmpty()) return null;
+        PhotoSize best = null;
+        for (PhotoSize ps : msg.getPhoto()) {
+            if (best == null) best = ps;
+            else {
+                Integer bs = best.getFileSize(), cs = ps.getFileSize();
+                if (bs == null || (cs != null && cs > bs)) best = ps;
+            }
+        }
+        return best != null ? best.getFileId() : null;
+    }
+}
@@ -0,0 +1,157 @@
+package com.winrun.bot;
+
+import com.winrun.bot.CallbackCodec.Op;
+import com.winrun.model.DeliveryType;
+import com.winrun.model.Product;
+import com.winrun.repo.ProductRepo;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Готовые клавиатуры и подписи, общие для всех чатов.
+ * Статические клавиатуры собираются один раз; клавиатура моделей, клавиатуры размеров и подписи вариантов —
+ * один раз на снимок каталога (пересборка, когда ProductRepo отдаёт новый список активных товаров).
+ * Объекты после сборки не меняются — их можно одновременно отдавать в любые SendMessage.
+ */
+public class RenderCache {
+
+    public static final ReplyKeyboardMarkup MAIN_MENU = buildMainMenu();
+
+    public static final InlineKeyboardMarkup START_INLINE_KB = inline(List.of(
+            List.of(button("📄 Юр. информация", CallbackCodec.encode(Op.LEGAL))),
+            List.of(button("📜 Оферта", CallbackCodec.encode(Op.OFFER)))));
+
+    public static final InlineKeyboardMarkup CONTROL_KB = inline(List.of(
+            List.of(button("◀", CallbackCodec.encode(Op.VPREV)), button("🔁 Цвет", CallbackCodec.encode(Op.NOOP)), button("▶", CallbackCodec.encode(Op.VNEXT))),
+            List.of(button("Выбрать ✅", CallbackCodec.encode(Op.PICK_MODEL))),
+            List.of(button("🔁 Модель", CallbackCodec.encode(Op.CHOOSE_MODEL)), button("🏠 В меню", CallbackCodec.encode(Op.GO_MENU)))));
+
+    public static final InlineKeyboardMarkup DELIVERY_KB = inline(List.of(
+            List.of(button("СДЭК", CallbackCodec.encode(Op.DELIVERY, DeliveryType.SDEK))),
+            List.of(button("Яндекс.Доставка", CallbackCodec.encode(Op.DELIVERY, DeliveryType.YANDEX)))));
+
+    public static final InlineKeyboardMarkup CONFIRM_ORDER_KB = inline(List.of(
+            List.of(button("Оформить предзаказ ✅", CallbackCodec.encode(Op.CONFIRM)))));
+
+    private static final List<String> DEFAULT_SIZES = List.of("39","40","41","42","43","44","45","46");
+
+    /** Всё, что зависит от каталога; source — список активных товаров снимка, по нему узнаём устаревание */
+    private record Catalog(List<Product> source,
+                           InlineKeyboardMarkup modelsKb,
+                           Map<Integer, InlineKeyboardMarkup> sizeKbs,
+                           Map<Integer, List<String>> captions) {}
+
+    private final ProductRepo products;
+    private final int defaultPrice;
+    private volatile Catalog catalog;
+    private final LongAdder rebuilds = new LongAdder();
+
+    public RenderCache(ProductRepo products, int defaultPrice) {
+        this.products = products;
+        this.defaultPrice = defaultPrice;
+    }
+
+    /** Кнопки моделей (2 в ряд) для текущего каталога */
+    public InlineKeyboardMarkup modelsKb() throws SQLException {
+        return current().modelsKb();
+    }
+
+    public InlineKeyboardMarkup sizeKb(Product p) throws SQLException {
+        InlineKeyboardMarkup kb = current().sizeKbs().get(p.id);
+        return kb != null ? kb : buildSizeKb(p); // выключенный товар в снимке активных не найдётся
+    }
+
+    public String caption(Product p, int variantIdx) throws SQLException {
+        List<String> caps = current().captions().get(p.id);
+        if (caps != null && variantIdx < caps.size()) return caps.get(variantIdx);
+        return buildCaption(p, p.variants.get(variantIdx));
+    }
+
+    public long rebuilds() { return rebuilds.sum(); }
+
+    /** Цена к оплате: своя у товара или общая из конфига */
+    public int price(Product p) { return p.price > 0 ? p.price : defaultPrice; }
+
+    private Catalog current() throws SQLException {
+        List<Product> active = products.listActive();
+        Catalog c = catalog;
+        if (c != null && c.source() == active) return c;
+        return rebuild(active);
+    }
+
+    private synchronized Catalog rebuild(List<Product> active) {
+        Catalog c = catalog;
+        if (c != null && c.source() == active) return c;
+
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        List<InlineKeyboardButton> row = new ArrayList<>();
+        Map<Integer, InlineKeyboardMarkup> sizeKbs = new HashMap<>();
+        Map<Integer, List<String>> captions = new HashMap<>();
+        for (Product p : active) {
+            row.add(button(p.name, CallbackCodec.encode(Op.MODEL, p.id)));
+            if (row.size() == 2) { rows.add(List.copyOf(row)); row.clear(); }
+
+            sizeKbs.put(p.id, buildSizeKb(p));
+            List<String> caps = new ArrayList<>();
+            if (p.variants != null) for (Product.Variant v : p.variants) caps.add(buildCaption(p, v));
+            captions.put(p.id, List.copyOf(caps));
+        }
+        if (!row.isEmpty()) rows.add(List.copyOf(row));
+
+        c = new Catalog(active, inline(rows), Map.copyOf(sizeKbs), Map.copyOf(captions));
+        catalog = c;
+        rebuilds.increment();
+        return c;
+    }
+
+    private static InlineKeyboardMarkup buildSizeKb(Product p) {
+        List<String> sizes = (p.sizes == null || p.sizes.isEmpty()) ? DEFAULT_SIZES : p.sizes;
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        for (String sz : sizes) rows.add(List.of(button(sz, CallbackCodec.encode(Op.SIZE, sz))));
+        return inline(rows);
+    }
+
+    private String buildCaption(Product p, Product.Variant v) {
+        return "*" + p.name + "*\n" +
+                (p.description == null || p.description.isBlank() ? "" : p.description + "\n") +
+                "Цвет: " + (v.color==null? "-" : v.color) + "\n" +
+                "Цена: " + price(p) + " ₽";
+    }
+
+    private static ReplyKeyboardMarkup buildMainMenu() {
+        ReplyKeyboardMarkup k = new ReplyKeyboardMarkup();
+        k.setResizeKeyboard(true);
+
+        KeyboardRow row1 = new KeyboardRow();
+        row1.add(new KeyboardButton("👟 Каталог"));
+
+        KeyboardRow row2 = new KeyboardRow();
+        row2.add(new KeyboardButton("📦 Мои заказы"));
+
+        KeyboardRow row3 = new KeyboardRow();
+        row3.add(new KeyboardButton("ℹ️ О коллекции"));
+        row3.add(new KeyboardButton("💬 Поддержка"));
+
+        k.setKeyboard(List.of(row1, row2, row3));
+        return k;
+    }
+
+    static InlineKeyboardButton button(String text, String data) {
+        InlineKeyboardButton b = new InlineKeyboardButton(text);
+        b.setCallbackData(data);
+        return b;
+    }
+
+    static InlineKeyboardMarkup inline(List<List<InlineKeyboardButton>> rows) {
+        InlineKeyboardMarkup kb = new InlineKeyboardMarkup();
+        kb.setKeyboard(rows);
+        return kb;
+    }
+}
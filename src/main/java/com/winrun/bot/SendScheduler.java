@@ -0,0 +1,280 @@
+package com.winrun.bot;
+
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Единая точка отправки в Bot API с лимитами Telegram: общий token bucket (~30 сообщений/с)
+ * и bucket на каждый чат (~1 сообщение/с с небольшим запасом на всплеск).
+ * Внутри чата вызовы идут строго по очереди (FIFO, не больше одного в полёте),
+ * между чатами первым обслуживается чат, у которого в голове очереди более важный класс.
+ * На 429 вызов возвращается в голову очереди своего чата и ждёт retry_after.
+ * Вызов может быть асинхронным ({@link #submitAsync}, например executeAsync): место в очереди чата
+ * освобождается, когда завершится его future, так что порядок сообщений в чате сохраняется.
+ * Служебному чату можно задать свой класс лимитов ({@link #configureChat}): несколько вызовов в полёте
+ * и свой темп — так прогрев картинок в кэш-чат идёт параллельно, не трогая лимиты покупателей.
+ */
+public class SendScheduler {
+
+    /** Классы приоритета: чем раньше в списке, тем важнее */
+    public enum Priority { PAYMENT, FLOW, CATALOG, BACKGROUND }
+
+    @FunctionalInterface
+    public interface Call<T> { T execute() throws TelegramApiException; }
+
+    @FunctionalInterface
+    public interface AsyncCall<T> { CompletableFuture<T> start() throws TelegramApiException; }
+
+    private static final int MAX_RETRIES = 5;
+    private static final long LANE_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final class Task<T> {
+        final long chatId;
+        final Priority priority;
+        final long seq;
+        final AsyncCall<T> call;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        int attempts;
+
+        Task(long chatId, Priority priority, long seq, AsyncCall<T> call) {
+            this.chatId = chatId; this.priority = priority; this.seq = seq; this.call = call;
+        }
+
+        void run() {
+            CompletableFuture<T> f;
+            try {
+                f = call.start();
+            } catch (Exception e) {
+                finish(null, e);
+                return;
+            }
+            f.whenComplete(this::finish);
+        }
+
+        void finish(T res, Throwable error) {
+            Throwable e = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (e == null) {
+                done(this, null, 0);
+                result.complete(res);
+            } else if (e instanceof TelegramApiRequestException re && Integer.valueOf(429).equals(re.getErrorCode())
+                    && attempts < MAX_RETRIES) {
+                Integer retryAfter = re.getParameters() == null ? null : re.getParameters().getRetryAfter();
+                throttled.increment();
+                done(this, null, retryAfter == null ? 1 : Math.max(1, retryAfter)); // 0 или отрицательное — всё равно повтор, не «успех»
+            } else {
+                done(this, e, 0);
+            }
+        }
+    }
+
+    /** Лимиты чата: темп, запас на всплеск и сколько вызовов одновременно в полёте */
+    private record ChatLimits(double rate, double burst, int maxInFlight) {}
+
+    /** Очередь одного чата + его token bucket */
+    private static final class Lane {
+        final ArrayDeque<Task<?>> queue = new ArrayDeque<>();
+        final ChatLimits limits;
+        int inFlight;
+        long blockedUntil;   // retry_after
+        double tokens;
+        long refilledAt;
+        long lastUsed;
+        Lane(ChatLimits limits) { this.limits = limits; }
+    }
+
+    private final double globalRate;
+    private final ChatLimits defaultLimits;
+    private final Map<Long, ChatLimits> chatLimits = new ConcurrentHashMap<>();
+    private double globalTokens;
+    private long globalRefilledAt = System.nanoTime();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Long, Lane> lanes = new HashMap<>();
+    private final AtomicLong seq = new AtomicLong();
+    private final int[] depthByPriority = new int[Priority.values().length];
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public SendScheduler(double globalPerSecond, double chatPerSecond, int chatBurst) {
+        this.globalRate = globalPerSecond;
+        this.defaultLimits = new ChatLimits(chatPerSecond, Math.max(1, chatBurst), 1);
+        this.globalTokens = globalPerSecond;
+        Thread t = new Thread(this::loop, "tg-send-scheduler");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Свой класс лимитов для служебного чата; задаётся до первой отправки в него. При maxInFlight &gt; 1
+     * порядок вызовов в чате не гарантируется — только для чатов, где он не важен (кэш-чат картинок).
+     * Общий лимит на бота действует как обычно.
+     */
+    public void configureChat(long chatId, double perSecond, int burst, int maxInFlight) {
+        chatLimits.put(chatId, new ChatLimits(perSecond, Math.max(1, burst), Math.max(1, maxInFlight)));
+    }
+
+    /** Блокирующий вызов — выполняется в виртуальном потоке планировщика */
+    public <T> CompletableFuture<T> submit(long chatId, Priority priority, Call<T> call) {
+        return submitAsync(chatId, priority, () -> {
+            CompletableFuture<T> f = new CompletableFuture<>();
+            executor.execute(() -> {
+                try { f.complete(call.execute()); } catch (Throwable e) { f.completeExceptionally(e); }
+            });
+            return f;
+        });
+    }
+
+    public <T> CompletableFuture<T> submitAsync(long chatId, Priority priority, AsyncCall<T> call) {
+        Task<T> task = new Task<>(chatId, priority, seq.incrementAndGet(), call);
+        lock.lock();
+        try {
+            Lane lane = lanes.computeIfAbsent(chatId, k -> {
+                Lane l = new Lane(chatLimits.getOrDefault(k, defaultLimits));
+                l.tokens = l.limits.burst();
+                l.refilledAt = System.nanoTime();
+                return l;
+            });
+            lane.queue.addLast(task);
+            depthByPriority[priority.ordinal()]++;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return task.result;
+    }
+
+    /** Дождаться результата, развернув ошибку Bot API */
+    public static <T> T await(CompletableFuture<T> f) throws TelegramApiException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TelegramApiException("Interrupted while waiting for send", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TelegramApiException te) throw te;
+            throw new TelegramApiException(e.getCause());
+        }
+    }
+
+    public int queueDepth() {
+        lock.lock();
+        try { return Arrays.stream(depthByPriority).sum(); } finally { lock.unlock(); }
+    }
+
+    public int queueDepth(Priority p) {
+        lock.lock();
+        try { return depthByPriority[p.ordinal()]; } finally { lock.unlock(); }
+    }
+
+    public long sent()      { return sent.sum(); }
+    public long throttled() { return throttled.sum(); }
+    public long failed()    { return failed.sum(); }
+
+    private void loop() {
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                refillGlobal(now);
+
+                Lane best = null;
+                Task<?> bestTask = null;
+                long wakeAt = Long.MAX_VALUE;
+                Iterator<Lane> it = lanes.values().iterator();
+                while (it.hasNext()) {
+                    Lane lane = it.next();
+                    if (lane.inFlight >= lane.limits.maxInFlight()) continue;
+                    if (lane.queue.isEmpty()) {
+                        if (lane.inFlight == 0 && now - lane.lastUsed > LANE_IDLE_NANOS) it.remove();
+                        continue;
+                    }
+                    refillLane(lane, now);
+                    long readyAt = Math.max(lane.blockedUntil, lane.tokens >= 1 ? now : now + nanosFor(1 - lane.tokens, lane.limits.rate()));
+                    if (readyAt > now) { wakeAt = Math.min(wakeAt, readyAt); continue; }
+                    Task<?> head = lane.queue.peekFirst();
+                    if (bestTask == null || head.priority.ordinal() < bestTask.priority.ordinal()
+                            || (head.priority == bestTask.priority && head.seq < bestTask.seq)) {
+                        best = lane; bestTask = head;
+                    }
+                }
+
+                if (best != null && globalTokens < 1) {
+                    wakeAt = now + nanosFor(1 - globalTokens, globalRate);
+                    best = null;
+                }
+                if (best == null) {
+                    try {
+                        if (wakeAt == Long.MAX_VALUE) changed.await();
+                        else changed.awaitNanos(wakeAt - now);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+
+                best.queue.pollFirst();
+                depthByPriority[bestTask.priority.ordinal()]--;
+                best.inFlight++;
+                best.tokens -= 1;
+                best.lastUsed = now;
+                globalTokens -= 1;
+                bestTask.attempts++;
+                executor.execute(bestTask::run);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Вызов закончился: ошибка, успех или 429 (retryAfterSec &gt; 0 — вернуть в голову очереди) */
+    private void done(Task<?> task, Throwable error, int retryAfterSec) {
+        lock.lock();
+        try {
+            Lane lane = lanes.get(task.chatId);
+            if (lane != null) {
+                lane.inFlight--;
+                lane.lastUsed = System.nanoTime();
+                if (retryAfterSec > 0) {
+                    lane.blockedUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(retryAfterSec);
+                    lane.queue.addFirst(task);
+                    depthByPriority[task.priority.ordinal()]++;
+                }
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (retryAfterSec > 0) return;
+        if (error == null) {
+            sent.increment();
+        } else {
+            failed.increment();
+            task.result.completeExceptionally(error);
+        }
+    }
+
+    private void refillGlobal(long now) {
+        globalTokens = Math.min(globalRate, globalTokens + (now - globalRefilledAt) / 1e9 * globalRate);
+        globalRefilledAt = now;
+    }
+
+    private void refillLane(Lane lane, long now) {
+        lane.tokens = Math.min(lane.limits.burst(), lane.tokens + (now - lane.refilledAt) / 1e9 * lane.limits.rate());
+        lane.refilledAt = now;
+    }
+
+    private static long nanosFor(double tokens, double rate) {
+        return (long) Math.ceil(tokens / rate * 1e9);
+    }
+}
@@ -0,0 +1,100 @@
+package com.winrun.bot;
+
+import com.winrun.metrics.LatencyHistogram;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Раздаёт апдейты по виртуальным потокам: у каждого чата свой почтовый ящик,
+ * апдейты одного чата обрабатываются строго по очереди, разные чаты — параллельно.
+ * Пустой ящик удаляется, так что память не растёт с числом чатов.
+ * В тот же ящик можно поставить и задачу чата ({@link #dispatch(long, Runnable)}), например
+ * дописать в сессию результат асинхронной отправки, — она выполнится между апдейтами, а не параллельно им.
+ */
+public class UpdateDispatcher {
+
+    @FunctionalInterface
+    public interface Handler { void handle(Update u) throws Exception; }
+
+    private record Item(Update update, Runnable task, long enqueuedAt) {}
+
+    private final class Mailbox {
+        final long chatId;
+        final Queue<Item> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Mailbox(long chatId) { this.chatId = chatId; }
+
+        void drain() {
+            while (true) {
+                Item it;
+                while ((it = queue.poll()) != null) run(it);
+                scheduled.set(false);
+                // кто-то успел положить апдейт после опустошения — продолжаем сами
+                if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) continue;
+                mailboxes.computeIfPresent(chatId, (k, mb) -> mb == this && queue.isEmpty() && !scheduled.get() ? null : mb);
+                return;
+            }
+        }
+    }
+
+    private final Handler handler;
+    private final Map<Long, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public UpdateDispatcher(Handler handler) { this.handler = handler; }
+
+    public void dispatch(Update u) {
+        enqueue(chatKey(u), new Item(u, null, System.nanoTime()));
+    }
+
+    /** Выполнить задачу в очереди чата, после уже принятых апдейтов */
+    public void dispatch(long chatId, Runnable task) {
+        enqueue(chatId, new Item(null, task, System.nanoTime()));
+    }
+
+    private void enqueue(long chatId, Item item) {
+        // добавление и удаление ящика идут через compute — апдейт не попадёт в уже выброшенный ящик
+        Mailbox mb = mailboxes.compute(chatId, (k, v) -> {
+            Mailbox box = v != null ? v : new Mailbox(k);
+            box.queue.add(item);
+            return box;
+        });
+        if (mb.scheduled.compareAndSet(false, true)) executor.execute(mb::drain);
+    }
+
+    /** Задержка апдейта от приёма до конца обработки */
+    public LatencyHistogram latency() { return latency; }
+
+    public int activeChats() { return mailboxes.size(); }
+
+    private void run(Item it) {
+        if (it.task() != null) {
+            try { it.task().run(); } catch (Exception e) { e.printStackTrace(); }
+            return;
+        }
+        try {
+            handler.handle(it.update());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            latency.recordNanos(System.nanoTime() - it.enqueuedAt());
+        }
+    }
+
+    private static long chatKey(Update u) {
+        if (u.hasMessage()) return u.getMessage().getChatId();
+        if (u.hasCallbackQuery() && u.getCallbackQuery().getMessage() != null)
+            return u.getCallbackQuery().getMessage().getChatId();
+        if (u.hasCallbackQuery()) return u.getCallbackQuery().getFrom().getId();
+        return 0L;
+    }
+}
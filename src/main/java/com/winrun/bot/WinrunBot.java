@@ -1,79 +1,191 @@
 package com.winrun.bot;
 
 import com.winrun.Config;
+import com.winrun.bot.ConversationFlow.Event;
 import com.winrun.integrations.BitrixClient;
+import com.winrun.integrations.LeadStatusSync;
+import com.winrun.integrations.OutboxWorker;
 import com.winrun.integrations.RobokassaService;
 import com.winrun.model.*;
+import com.winrun.repo.FileIdRepo;
 import com.winrun.repo.OrderRepo;
+import com.winrun.repo.OutboxRepo;
 import com.winrun.repo.ProductRepo;
+import com.winrun.repo.SessionStore;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
 import org.telegram.telegrambots.meta.api.methods.ParseMode;
 import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
-import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
-import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessage;
 import org.telegram.telegrambots.meta.api.objects.*;
-import org.telegram.telegrambots.meta.api.objects.media.InputMedia;
-import org.telegram.telegrambots.meta.api.objects.media.InputMediaPhoto;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
 
+import static com.winrun.bot.SendScheduler.Priority.*;
+
 public class WinrunBot extends TelegramLongPollingBot {
     private final Config cfg;
     private final ProductRepo products;
     private final OrderRepo orders;
+    private final OutboxRepo outbox;
     private final BitrixClient bitrix;
+    private final LeadStatusSync statusSync;
     private final RobokassaService rk;
 
-    private final Map<Long, ConversationState> states = new ConcurrentHashMap<>();
-    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    // Шаг сценария, выбор, сообщения альбома/карточки — одна запись на чат, вытесняемая и переживающая рестарт
+    private final SessionStore sessions;
+
+    // Картинки вариантов; кэш file_id (по хэшу содержимого) живёт в FileIdRepo и переживает рестарт
+    private final ImageRefs images;
+    // получают бота как AbsSender, поэтому собираются в create(), после конструктора
+    private ImageWarmer warmer;
+    private ImagePrefetcher prefetcher;
+    private AlbumSender albums;
+    private final SendScheduler sender;
+    private final RenderCache render;
+    private final CallbackGuard callbacks;
+    private final ConversationFlow flow = new ConversationFlow();
+    private final CallbackCodec.Timings callbackTimings = new CallbackCodec.Timings();
+    private UpdateDispatcher dispatcher; // ссылается на handleUpdate — тоже собирается в create()
 
-    // Сообщения альбома и карточки — чтобы удалять при желании (по твоему последнему требованию мы НЕ удаляем при навигации)
-    private final Map<Long, List<Integer>> lastAlbumMessageIds = new ConcurrentHashMap<>();
-    private final Map<Long, Integer> lastCardMessageId = new ConcurrentHashMap<>();
+    private static final Pattern PHONE_RU = Pattern.compile("^(\\+7|8)\\d{10}$");
 
-    // Кэш file_id: ключ = canonicalRef (путь/URL), значение = file_id
-    private final Map<String, String> fileIdCache = new ConcurrentHashMap<>();
+    private static final String LEGAL_TEXT = """
+            winrun.official@gmail
+            WhatsApp: 89122001117
 
-    private static final Pattern PHONE_RU = Pattern.compile("^(\\+7|8)\\d{10}$");
+            Название организации
+            ОБЩЕСТВО С ОГРАНИЧЕННОЙ ОТВЕТСТВЕННОСТЬЮ "ВН-РН ГРУПП"
+
+            Юридический адрес организации
+            420140, РОССИЯ, РЕСПУБЛИКА ТАТАРСТАН (ТАТАРСТАН), Г.О. ГОРОД КАЗАНЬ, Г КАЗАНЬ, УЛ МИНСКАЯ, Д. 61, ПОМЕЩ. 1048
+
+            ИНН
+            1686052040
+
+            КПП
+            168601001
+
+            ОГРН/ОГРНИП
+            1251600037039
+
+            Расчетный счет
+            40702810010001969262
+
+            Банк
+            АО «ТБанк»
+
+            ИНН банка
+            7710140679
+
+            БИК банка
+            044525974
 
-    public WinrunBot(Config cfg, ProductRepo products, OrderRepo orders, BitrixClient bitrix, RobokassaService rk) {
-        super(cfg.botToken());
+            Корреспондентский счет банка
+            30101810145250000974
+
+            Юридический адрес банка
+            127287, г. Москва, ул. Хуторская 2-я, д. 38А, стр. 26
+            """;
+
+    /** Бот со всеми помощниками; до registerBot/вебхука из других потоков не используется */
+    public static WinrunBot create(Config cfg, ProductRepo products, OrderRepo orders, OutboxRepo outbox, BitrixClient bitrix,
+                                   LeadStatusSync statusSync, RobokassaService rk, FileIdRepo fileIds, SessionStore sessions) {
+        WinrunBot bot = new WinrunBot(cfg, products, orders, outbox, bitrix, statusSync, rk, sessions);
+        bot.albums = new AlbumSender(bot, bot.images, fileIds);
+        bot.warmer = new ImageWarmer(bot, bot.sender, products, bot.images, fileIds, bot.albums, cfg.cacheChatId(),
+                cfg.imageWarmupParallelism(), cfg.cacheChatRate());
+        bot.prefetcher = new ImagePrefetcher(bot.warmer, products, bot.images, fileIds, bot.albums, cfg.carouselEdit(), cfg.prefetchParallelism());
+        bot.dispatcher = new UpdateDispatcher(bot::handleUpdate);
+        return bot;
+    }
+
+    private WinrunBot(Config cfg, ProductRepo products, OrderRepo orders, OutboxRepo outbox, BitrixClient bitrix,
+                      LeadStatusSync statusSync, RobokassaService rk, SessionStore sessions) {
+        super(botOptions(cfg), cfg.botToken());
         this.cfg = cfg;
         this.products = products;
         this.orders = orders;
+        this.outbox = outbox;
         this.bitrix = bitrix;
+        this.statusSync = statusSync;
         this.rk = rk;
+        this.sessions = sessions;
+        this.callbacks = new CallbackGuard(cfg.callbackDedupMillis());
+        this.images = new ImageRefs(cfg.imagesBasePath());
+        this.sender = new SendScheduler(cfg.sendGlobalRate(), cfg.sendChatRate(), cfg.sendChatBurst());
 
         try { this.products.seedIfEmpty(); } catch (Exception e) {
             System.out.println("Seed catalog failed: " + e.getMessage());
         }
+        this.render = new RenderCache(products, cfg.priceRub());
+    }
+
+    private static DefaultBotOptions botOptions(Config cfg) {
+        DefaultBotOptions o = new DefaultBotOptions();
+        o.setMaxThreads(Math.max(1, cfg.telegramHttpThreads()));
+        return o;
     }
 
     @Override public String getBotUsername() { return cfg.botUsername(); }
 
+    public ImageWarmer imageWarmer() { return warmer; }
+    public ImagePrefetcher prefetcher() { return prefetcher; }
+    public UpdateDispatcher dispatcher() { return dispatcher; }
+    public SendScheduler sender() { return sender; }
+    public RenderCache render() { return render; }
+    public CallbackGuard callbacks() { return callbacks; }
+    public ConversationFlow flow() { return flow; }
+    public CallbackCodec.Timings callbackTimings() { return callbackTimings; }
+
+    /** Поток поллинга только раскладывает апдейты по чатам; обработка — в виртуальных потоках */
     @Override
     public void onUpdateReceived(Update update) {
+        if (update.hasCallbackQuery()) {
+            CallbackQuery q = update.getCallbackQuery();
+            answer(q);
+            if (!callbacks.firstTap(q)) return; // повторное нажатие того же — не обрабатываем
+        }
+        dispatcher.dispatch(update);
+    }
+
+    /** Ответ на колбэк сразу, мимо очереди чата — клиент убирает «часики» и не жмёт повторно */
+    private void answer(CallbackQuery q) {
+        try {
+            executeAsync(new AnswerCallbackQuery(q.getId())).exceptionally(e -> {
+                System.out.println("[TG] answerCallbackQuery failed: " + e.getMessage());
+                return null;
+            });
+        } catch (TelegramApiException e) {
+            System.out.println("[TG] answerCallbackQuery failed: " + e.getMessage());
+        }
+    }
+
+    private void handleUpdate(Update update) throws Exception {
+        Long chatId = update.hasMessage() ? update.getMessage().getChatId()
+                : update.hasCallbackQuery() && update.getCallbackQuery().getMessage() != null
+                ? update.getCallbackQuery().getMessage().getChatId() : null;
+        if (chatId == null) return;
+        Lock held = sessions.hold(chatId); // фоновый сброс не снимет сессию посреди обработки
         try {
             if (update.hasMessage()) onMessage(update.getMessage());
-            else if (update.hasCallbackQuery()) onCallback(update.getCallbackQuery());
-        } catch (Exception e) { e.printStackTrace(); }
+            else onCallback(update.getCallbackQuery());
+        } finally {
+            // сессию могли заменить (sendMainMenu) — отмечаем текущую, она уйдёт в БД с ближайшим сбросом
+            try { sessions.save(chatId, sessions.get(chatId)); } finally { held.unlock(); }
+        }
     }
 
     private void onMessage(Message m) throws Exception {
         long chatId = m.getChatId();
-        states.putIfAbsent(chatId, ConversationState.IDLE);
         if (!m.hasText()) return;
 
         String text = m.getText().trim();
@@ -95,14 +207,7 @@ public class WinrunBot extends TelegramLongPollingBot {
 
     /* ===================== /start: фото + подпись + инлайн-кнопки ===================== */
 
-    private InlineKeyboardMarkup startInlineKb() {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(button("📄 Юр. информация", "legal")));
-        rows.add(List.of(button("📜 Оферта", "offer")));
-        return inline(rows);
-    }
-
-    private void sendStartHero(long chatId) throws TelegramApiException {
+    private void sendStartHero(long chatId) {
         String caption = """
                 👋 Привет!
                 Добро пожаловать в WINRUN Casual Man’s — первый в России casual-бренд для мужчин.
@@ -110,30 +215,26 @@ public class WinrunBot extends TelegramLongPollingBot {
                 """;
 
         // Пытаемся отправить 1.jpg как фото с подписью
-        File f = resolveLocalFile("1.jpg");
+        File f = images.resolveLocalFile("1.jpg");
         if (f.exists() && f.isFile()) {
             SendPhoto sp = new SendPhoto(String.valueOf(chatId), new InputFile(f, f.getName()));
             sp.setCaption(caption);
             sp.setParseMode(ParseMode.MARKDOWN);
-            sp.setReplyMarkup(startInlineKb());
-            execute(sp);
+            sp.setReplyMarkup(RenderCache.START_INLINE_KB);
+            post(chatId, CATALOG, () -> executeAsync(sp));
         } else {
             // fallback — если файла нет, отправим просто текст
             SendMessage sm = new SendMessage(String.valueOf(chatId), caption + "\n(Нет файла 1.jpg)");
             sm.setParseMode(ParseMode.MARKDOWN);
-            sm.setReplyMarkup(startInlineKb());
-            execute(sm);
+            sm.setReplyMarkup(RenderCache.START_INLINE_KB);
+            post(chatId, CATALOG, () -> executeAsync(sm));
         }
-
-        ReplyKeyboardMarkup k = (ReplyKeyboardMarkup) mainMenu();
-
     }
 
     /* ===================== Каталог: список моделей ===================== */
 
     private void showModelsList(long chatId) throws Exception {
-        int used = orders.countNonFailed();
-        if (used >= cfg.dropLimit()) {
+        if (orders.drop().soldOut()) {
             sendText(chatId, "❌ Предзаказ закрыт: лимит дропа (" + cfg.dropLimit() + " пар) достигнут.");
             return;
         }
@@ -143,152 +244,20 @@ public class WinrunBot extends TelegramLongPollingBot {
             return;
         }
 
-        // Кнопки моделей (2 в ряд)
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        List<InlineKeyboardButton> row = new ArrayList<>();
-        for (Product p : list) {
-            InlineKeyboardButton b = new InlineKeyboardButton(p.name);
-            b.setCallbackData("model:" + p.id);
-            row.add(b);
-            if (row.size() == 2) { rows.add(new ArrayList<>(row)); row.clear(); }
-        }
-        if (!row.isEmpty()) rows.add(row);
-
+        // Кнопки моделей (2 в ряд) — собраны один раз на снимок каталога
         SendMessage sm = new SendMessage(String.valueOf(chatId), "Выберите модель:");
-        sm.setReplyMarkup(inline(rows));
-        execute(sm);
+        sm.setReplyMarkup(render.modelsKb());
+        post(chatId, CATALOG, () -> executeAsync(sm));
 
         // ничего не чистим — по твоему требованию
-        states.put(chatId, ConversationState.SELECT_PRODUCT);
-    }
-
-    /* ===================== Помощники по фото ===================== */
-
-    private String imagesBasePathSafe() {
-        try {
-            var m = Config.class.getMethod("imagesBasePath");
-            Object v = m.invoke(cfg);
-            if (v != null) return v.toString();
-        } catch (Exception ignore) {}
-        return "."; // текущая директория запуска
-    }
-
-    private boolean isHttpUrl(String ref) {
-        return ref != null && (ref.startsWith("http://") || ref.startsWith("https://"));
-    }
-
-    private File resolveLocalFile(String ref) {
-        File f = new File(ref);
-        if (!f.isAbsolute()) f = new File(imagesBasePathSafe(), ref);
-        return f;
-    }
-
-    /** Новый порядок: 1, 4, 3, 5, 2 */
-    private List<String> buildStrictRefs(String mainFilename) {
-        List<String> out = new ArrayList<>();
-        if (mainFilename == null || mainFilename.isBlank()) return out;
-
-        String name = mainFilename.trim();
-        int dot = name.lastIndexOf('.');
-        String base = dot > 0 ? name.substring(0, dot) : name;
-        String ext  = dot > 0 ? name.substring(dot) : "";
-
-        out.add(base + ext);          // 1
-        out.add(base + "_4" + ext);   // 4
-        out.add(base + "_3" + ext);   // 3
-        out.add(base + "_5" + ext);   // 5
-        out.add(base + "_2" + ext);   // 2
-        return out;
-    }
-
-    private String buildCaption(Product p, Product.Variant v) {
-        return "*" + p.name + "*\n" +
-                (p.description == null || p.description.isBlank() ? "" : p.description + "\n") +
-                "Цвет: " + (v.color==null? "-" : v.color) + "\n" +
-                "Цена: " + (p.price > 0 ? p.price : cfg.priceRub()) + " ₽";
-    }
-
-    /** прогрев file_id (в том же чате; можно переделать на кэш-чат, если понадобится) */
-    private List<String> ensureFileIds(long chatId, List<String> refs) throws TelegramApiException {
-        List<String> out = new ArrayList<>();
-        for (String ref : refs) {
-            if (ref == null || ref.isBlank()) continue;
-
-            String key = canonicalRef(ref);
-            String cached = fileIdCache.get(key);
-            if (cached != null && !cached.isBlank()) { out.add(cached); continue; }
-
-            InputFile toSend;
-            if (isHttpUrl(ref)) {
-                toSend = new InputFile(ref);
-            } else {
-                File f = resolveLocalFile(ref);
-                if (!f.exists() || !f.isFile()) {
-                    System.out.println("[IMG] Not found: " + f.getAbsolutePath());
-                    continue;
-                }
-                toSend = new InputFile(f, f.getName());
-            }
-
-            SendPhoto sp = new SendPhoto(String.valueOf(chatId), toSend);
-            Message msg = execute(sp);
-            String fid = extractLargestPhotoFileId(msg);
-            if (fid != null) {
-                fileIdCache.put(key, fid);
-                out.add(fid);
-            }
-
-            execute(new DeleteMessage(String.valueOf(chatId), msg.getMessageId()));
-        }
-        return out;
-    }
-
-    private String canonicalRef(String ref) {
-        if (ref == null) return "";
-        String r = ref.trim();
-        if (isHttpUrl(r)) return r;
-        File f = resolveLocalFile(r);
-        return f.getAbsolutePath();
-    }
-
-    private String extractLargestPhotoFileId(Message msg) {
-        if (msg == null || msg.getPhoto() == null || msg.getPhoto().isEmpty()) return null;
-        PhotoSize best = null;
-        for (PhotoSize ps : msg.getPhoto()) {
-            if (best == null) best = ps;
-            else {
-                Integer bs = best.getFileSize(), cs = ps.getFileSize();
-                if (bs == null || (cs != null && cs > bs)) best = ps;
-            }
-        }
-        return best != null ? best.getFileId() : null;
-    }
-
-    private InlineKeyboardMarkup controlKb() {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(
-                button("◀", "vprev"),
-                button("🔁 Цвет", "noop"),
-                button("▶", "vnext")
-        ));
-        rows.add(List.of(button("Выбрать ✅", "pickModel")));
-        rows.add(List.of(
-                button("🔁 Модель", "chooseModel"),
-                button("🏠 В меню", "goMenu")
-        ));
-        return inline(rows);
-    }
-
-    private InlineKeyboardButton button(String text, String data) {
-        InlineKeyboardButton b = new InlineKeyboardButton(text);
-        b.setCallbackData(data);
-        return b;
+        flow.fire(sessions.get(chatId), Event.OPEN_CATALOG);
     }
 
     /* ===================== Альбом + карточка ===================== */
 
-    private void sendVariantAlbumThenCard(long chatId) throws Exception {
-        Session s = sessions.computeIfAbsent(chatId, k -> new Session());
+    /** Показать текущий вариант; navigate — клик ◀/▶, в режиме карусели правим прежнюю карточку */
+    private void sendVariantAlbumThenCard(long chatId, boolean navigate) throws Exception {
+        Session s = sessions.get(chatId);
         if (s.selectedModelId == null) { showModelsList(chatId); return; }
         var opt = products.find(s.selectedModelId);
         if (opt.isEmpty()) { showModelsList(chatId); return; }
@@ -303,218 +272,226 @@ public class WinrunBot extends TelegramLongPollingBot {
         Product.Variant v = p.variants.get(idx);
 
         // Файлы по схеме и нашем порядке
-        List<String> refs = buildStrictRefs(v.image);
-
-        // Прогреваем и получаем file_id
-        List<String> fids = ensureFileIds(chatId, refs);
-
-        // Собираем альбом из file_id
-        List<InputMedia> media = new ArrayList<>();
-        for (String fid : fids) {
-            InputMediaPhoto photo = new InputMediaPhoto();
-            photo.setMedia(fid); // строка (file_id)
-            media.add(photo);
-            if (media.size() == 5) break;
-        }
+        List<String> refs = images.buildStrictRefs(v.image);
+        String caption = render.caption(p, idx);
 
-        List<Integer> mids = new ArrayList<>();
-
-        if (media.size() >= 2) {
-            SendMediaGroup group = new SendMediaGroup();
-            group.setChatId(String.valueOf(chatId));
-            group.setMedias(media);
-            List<Message> responses = execute(group);
-            for (Message mm : responses) mids.add(mm.getMessageId());
-        } else if (media.size() == 1) {
-            SendPhoto sp = new SendPhoto(String.valueOf(chatId), new InputFile(fids.get(0)));
-            Message m = execute(sp);
-            mids.add(m.getMessageId());
-        } else {
-            // нет валидных изображений — пропускаем альбом
+        // картинки этого варианта могут уже грузиться предзагрузкой — дождёмся их, соседей начнём грузить сейчас
+        prefetcher.beforeShow(prefetcher.shownRefs(v));
+        prefetcher.prefetchAround(p, idx);
+
+        if (cfg.carouselEdit()) {
+            String ref = albums.firstExisting(refs);
+            if (ref != null && showCarouselCard(chatId, s, ref, caption, navigate)) return;
+            // у варианта нет картинок — ниже уйдёт текстовая карточка
         }
 
-        lastAlbumMessageIds.put(chatId, mids);
+        // Один sendMediaGroup: закэшированные по file_id, холодные — вложениями (file_id снимаем с ответа).
+        // Нет валидных изображений — альбом пропускается. Ответ альбома не ждём: карточка встанет за ним в очередь чата.
+        CompletableFuture<List<Message>> album = sender.submit(chatId, CATALOG, () -> albums.send(chatId, refs));
+        album.exceptionally(e -> { logSendFailure(chatId, e); return null; });
 
-        // Затем карточка (название/описание/цена + кнопки)
-        String caption = buildCaption(p, v);
+        // Затем карточка (название/описание/цена + кнопки) — её id нужен, здесь ждём
         SendMessage card = new SendMessage(String.valueOf(chatId), caption);
         card.setParseMode(ParseMode.MARKDOWN);
-        card.setReplyMarkup(controlKb());
-        Message cardMsg = execute(card);
-        lastCardMessageId.put(chatId, cardMsg.getMessageId());
+        card.setReplyMarkup(RenderCache.CONTROL_KB);
+        Message cardMsg = SendScheduler.await(sender.submitAsync(chatId, CATALOG, () -> executeAsync(card)));
+        s.lastCardMessageId = cardMsg.getMessageId();
+        s.lastCardIsPhoto = false;
+
+        // id альбома пишем в сессию в очереди чата, а не в потоке отправки
+        int cardId = cardMsg.getMessageId();
+        album.thenAccept(sent -> dispatcher.dispatch(chatId, () -> rememberAlbum(chatId, cardId, sent)));
     }
 
-    /* ===================== Callbacks ===================== */
-
-    private void onCallback(CallbackQuery q) throws Exception {
-        long chatId = q.getMessage().getChatId();
-        String data = q.getData();
-
-        if ("noop".equals(data)) return;
-
-        if ("legal".equals(data)) {
-            String legal = """
-                    winrun.official@gmail
-                    WhatsApp: 89122001117
-
-                    Название организации
-                    ОБЩЕСТВО С ОГРАНИЧЕННОЙ ОТВЕТСТВЕННОСТЬЮ "ВН-РН ГРУПП"
-
-                    Юридический адрес организации
-                    420140, РОССИЯ, РЕСПУБЛИКА ТАТАРСТАН (ТАТАРСТАН), Г.О. ГОРОД КАЗАНЬ, Г КАЗАНЬ, УЛ МИНСКАЯ, Д. 61, ПОМЕЩ. 1048
-
-                    ИНН
-                    1686052040
+    /** Альбом относится к карточке cardId; если её уже сменила более новая — ничего не трогаем */
+    private void rememberAlbum(long chatId, int cardId, List<Message> sent) {
+        try {
+            Lock held = sessions.hold(chatId);
+            try {
+                Session s = sessions.get(chatId);
+                if (!Integer.valueOf(cardId).equals(s.lastCardMessageId)) return;
+                List<Integer> mids = new ArrayList<>();
+                for (Message mm : sent) mids.add(mm.getMessageId());
+                s.lastAlbumMessageIds = mids;
+                sessions.save(chatId, s);
+            } finally {
+                held.unlock();
+            }
+        } catch (Exception e) {
+            System.out.println("[SESSION] Album ids for " + chatId + " not saved: " + e.getMessage());
+        }
+    }
 
-                    КПП
-                    168601001
+    /**
+     * Карусель: при навигации один editMessageMedia по прежней карточке-фото,
+     * иначе (или если править нечего/нельзя) — новая карточка-фото. false — не удалось и отправить.
+     */
+    private boolean showCarouselCard(long chatId, Session s, String ref, String caption, boolean navigate) {
+        Integer cardId = s.lastCardMessageId;
+        if (navigate && cardId != null && Boolean.TRUE.equals(s.lastCardIsPhoto)) {
+            try {
+                SendScheduler.await(sender.submit(chatId, CATALOG, () -> {
+                    albums.editCard(chatId, cardId, ref, caption, RenderCache.CONTROL_KB);
+                    return cardId;
+                }));
+                return true;
+            } catch (TelegramApiException e) {
+                // сообщение удалено или слишком старое — шлём новую карточку
+                System.out.println("[TG] Card edit in " + chatId + " failed, sending a new one: " + e.getMessage());
+            }
+        }
+        try {
+            Message card = SendScheduler.await(sender.submit(chatId, CATALOG,
+                    () -> albums.sendCard(chatId, ref, caption, RenderCache.CONTROL_KB)));
+            s.lastCardMessageId = card.getMessageId();
+            s.lastCardIsPhoto = true;
+            s.lastAlbumMessageIds = null;
+            return true;
+        } catch (TelegramApiException e) {
+            logSendFailure(chatId, e);
+            return false;
+        }
+    }
 
-                    ОГРН/ОГРНИП
-                    1251600037039
+    /* ===================== Callbacks ===================== */
 
-                    Расчетный счет
-                    40702810010001969262
+    private void onCallback(CallbackQuery q) throws Exception {
+        CallbackCodec.Callback cb = CallbackCodec.decode(q.getData());
+        if (cb == null) return; // неизвестная кнопка
+        long started = System.nanoTime();
+        try {
+            route(q, cb);
+        } finally {
+            callbackTimings.record(cb.op(), System.nanoTime() - started);
+        }
+    }
 
-                    Банк
-                    АО «ТБанк»
+    /** Маршрут по коду операции — switch по enum, без сравнения строк */
+    private void route(CallbackQuery q, CallbackCodec.Callback cb) throws Exception {
+        long chatId = q.getMessage().getChatId();
+        switch (cb.op()) {
+            case NOOP -> { }
+            case LEGAL -> sendText(chatId, CATALOG, LEGAL_TEXT);
+            case OFFER -> sendOffer(chatId);
+            case GO_MENU -> sendStartHero(chatId);
+            case CHOOSE_MODEL -> showModelsList(chatId); // Кнопка "🔁 Модель" — вернём пользователя к каталогу/выбору модели
+            case MODEL -> openModel(chatId, cb.intArg());
+            case VNEXT, VPREV -> navigateVariant(q, cb.op() == CallbackCodec.Op.VNEXT);
+            case PICK_MODEL -> pickModel(chatId);
+            case SIZE -> chooseSize(chatId, cb.arg());
+            case DELIVERY -> chooseDelivery(chatId, cb.arg());
+            case CONFIRM -> finalizeOrder(chatId);
+        }
+    }
 
-                    ИНН банка
-                    7710140679
+    private void sendOffer(long chatId) {
+        File f = images.resolveLocalFile("1.docx");
+        if (f.exists() && f.isFile()) {
+            SendDocument sd = new SendDocument(String.valueOf(chatId), new InputFile(f, f.getName()));
+            sd.setCaption("Публичная оферта");
+            post(chatId, CATALOG, () -> executeAsync(sd));
+        } else {
+            sendText(chatId, "Файл оферты (1.docx) не найден рядом с приложением.");
+        }
+    }
 
-                    БИК банка
-                    044525974
+    private void openModel(long chatId, int id) throws Exception {
+        Session s = sessions.get(chatId);
+        s.selectedModelId = id;
+        s.variantIndex = 0;
 
-                    Корреспондентский счет банка
-                    30101810145250000974
+        // ничего не удаляем
+        sendVariantAlbumThenCard(chatId, false);
+    }
 
-                    Юридический адрес банка
-                    127287, г. Москва, ул. Хуторская 2-я, д. 38А, стр. 26
-                    """;
-            sendText(chatId, legal);
-            return;
-        }
+    private void navigateVariant(CallbackQuery q, boolean forward) throws Exception {
+        long chatId = q.getMessage().getChatId();
+        Session s = sessions.get(chatId);
+        if (s.selectedModelId == null) { showModelsList(chatId); return; }
+        var opt = products.find(s.selectedModelId);
+        if (opt.isEmpty()) { showModelsList(chatId); return; }
+        Product p = opt.get();
+        int n = (p.variants == null) ? 0 : p.variants.size();
+        if (n == 0) { showModelsList(chatId); return; }
 
-        if ("offer".equals(data)) {
-            File f = resolveLocalFile("1.docx");
-            if (f.exists() && f.isFile()) {
-                SendDocument sd = new SendDocument(String.valueOf(chatId), new InputFile(f, f.getName()));
-                sd.setCaption("Публичная оферта");
-                execute(sd);
-            } else {
-                sendText(chatId, "Файл оферты (1.docx) не найден рядом с приложением.");
-            }
-            return;
+        int idx = (s.variantIndex == null) ? 0 : s.variantIndex;
+        idx = forward ? (idx + 1) % n : (idx - 1 + n) % n;
+        s.variantIndex = idx;
+        // нажали на карточку-фото — правим именно её, даже если она не последняя
+        if (q.getMessage() instanceof Message cm && cm.hasPhoto()) {
+            s.lastCardMessageId = cm.getMessageId();
+            s.lastCardIsPhoto = true;
         }
 
-        if ("goMenu".equals(data)) {
-            sendStartHero(chatId);
-            return;
-        }
-        if ("chooseModel".equals(data)) {
-            // Кнопка "🔁 Модель" — вернём пользователя к каталогу/выбору модели
-            showModelsList(chatId);
-            return;
-        }
-        if (data.startsWith("model:")) {
-            int id = Integer.parseInt(data.substring(6));
-            Session s = sessions.computeIfAbsent(chatId, k -> new Session());
-            s.selectedModelId = id;
-            s.variantIndex = 0;
-
-            // ничего не удаляем
-            sendVariantAlbumThenCard(chatId);
-            return;
-        }
+        // карусель правит карточку на месте; в режиме album — новая группа, ничего не удаляем
+        sendVariantAlbumThenCard(chatId, true);
+    }
 
-        if ("vnext".equals(data) || "vprev".equals(data)) {
-            Session s = sessions.computeIfAbsent(chatId, k -> new Session());
-            if (s.selectedModelId == null) { showModelsList(chatId); return; }
-            var opt = products.find(s.selectedModelId);
-            if (opt.isEmpty()) { showModelsList(chatId); return; }
-            Product p = opt.get();
-            int n = (p.variants == null) ? 0 : p.variants.size();
-            if (n == 0) { showModelsList(chatId); return; }
-
-            int idx = (s.variantIndex == null) ? 0 : s.variantIndex;
-            if ("vnext".equals(data)) idx = (idx + 1) % n; else idx = (idx - 1 + n) % n;
-            s.variantIndex = idx;
-
-            // ничего не удаляем — просто шлём новую группу
-            sendVariantAlbumThenCard(chatId);
-            return;
-        }
+    private void pickModel(long chatId) throws Exception {
+        Session s = sessions.get(chatId);
+        if (s.selectedModelId == null) { showModelsList(chatId); return; }
+        var opt = products.find(s.selectedModelId);
+        if (opt.isEmpty()) { showModelsList(chatId); return; }
+        Product p = opt.get();
 
-        if ("pickModel".equals(data)) {
-            Session s = sessions.computeIfAbsent(chatId, k -> new Session());
-            if (s.selectedModelId == null) { showModelsList(chatId); return; }
-            var opt = products.find(s.selectedModelId);
-            if (opt.isEmpty()) { showModelsList(chatId); return; }
-            Product p = opt.get();
-
-            int idx = (s.variantIndex == null) ? 0 : s.variantIndex;
-            if (p.variants == null || p.variants.isEmpty()) { showModelsList(chatId); return; }
-            if (idx < 0 || idx >= p.variants.size()) idx = 0;
-
-            s.selectedProductId = p.id;
-            s.selectedColor = p.variants.get(idx).color;
-
-            // размеры
-            List<String> sizes = (p.sizes == null || p.sizes.isEmpty())
-                    ? List.of("39","40","41","42","43","44","45","46")
-                    : p.sizes;
-
-            List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-            for (String sz : sizes) {
-                InlineKeyboardButton b = new InlineKeyboardButton(sz);
-                b.setCallbackData("size:" + sz);
-                rows.add(List.of(b));
-            }
-            SendMessage msg = new SendMessage(String.valueOf(chatId), "Выберите размер:");
-            msg.setReplyMarkup(inline(rows));
-            execute(msg);
+        int idx = (s.variantIndex == null) ? 0 : s.variantIndex;
+        if (p.variants == null || p.variants.isEmpty()) { showModelsList(chatId); return; }
+        if (idx < 0 || idx >= p.variants.size()) idx = 0;
 
-            states.put(chatId, ConversationState.SELECT_SIZE);
-            return;
-        }
+        s.selectedProductId = p.id;
+        s.selectedColor = p.variants.get(idx).color;
 
-        if (data.startsWith("size:")) {
-            String size = data.substring(5);
-            Session s = sessions.computeIfAbsent(chatId, k -> new Session());
-            s.selectedSize = size;
+        // размеры
+        SendMessage msg = new SendMessage(String.valueOf(chatId), "Выберите размер:");
+        msg.setReplyMarkup(render.sizeKb(p));
+        post(chatId, FLOW, () -> executeAsync(msg));
 
-            SendMessage sm2 = new SendMessage(String.valueOf(chatId), "Отлично! Для оформления введите *ФИО*:");
-            sm2.setParseMode(ParseMode.MARKDOWN);
-            execute(sm2);
+        flow.fire(s, Event.PICK_MODEL);
+    }
 
-            states.put(chatId, ConversationState.ENTER_NAME);
+    private void chooseSize(long chatId, String size) throws Exception {
+        Session s = sessions.get(chatId);
+        if (!flow.fire(s, Event.SIZE_CHOSEN)) {
+            sendText(chatId, "Чтобы выбрать размер, откройте модель в «Каталоге» и нажмите «Выбрать ✅».");
             return;
         }
+        s.selectedSize = size;
 
-        if (data.equals("order:confirm")) { finalizeOrder(chatId); return; }
-
-        if (data.equals("del:SDEK") || data.equals("del:YANDEX")) {
-            Session s = sessions.computeIfAbsent(chatId, k -> new Session());
-            s.deliveryType = data.endsWith("SDEK") ? DeliveryType.SDEK : DeliveryType.YANDEX;
-
-            if (s.deliveryType == DeliveryType.SDEK) sendText(chatId, "Введите город и адрес/ПВЗ (одной строкой):");
-            else sendText(chatId, "Введите адрес доставки. Затем пришлите комментарий для курьера (при необходимости).");
+        SendMessage sm2 = new SendMessage(String.valueOf(chatId), "Отлично! Для оформления введите *ФИО*:");
+        sm2.setParseMode(ParseMode.MARKDOWN);
+        post(chatId, FLOW, () -> executeAsync(sm2));
+    }
 
-            states.put(chatId, ConversationState.ENTER_DELIVERY_FIELDS);
+    private void chooseDelivery(long chatId, String type) throws Exception {
+        DeliveryType dt;
+        try { dt = DeliveryType.valueOf(type); } catch (IllegalArgumentException e) { return; }
+        Session s = sessions.get(chatId);
+        if (!flow.fire(s, Event.DELIVERY_CHOSEN)) {
+            sendText(chatId, "Способ доставки выбирается после ввода телефона. Начните с «Каталога».");
+            return;
         }
+        s.deliveryType = dt;
+        // способ могли сменить после ввода адреса — адрес вводится заново
+        s.city = null;
+        s.address = null;
+        s.courierComment = null;
+
+        if (s.deliveryType == DeliveryType.SDEK) sendText(chatId, "Введите город и адрес/ПВЗ (одной строкой):");
+        else sendText(chatId, "Введите адрес доставки. Затем пришлите комментарий для курьера (при необходимости).");
     }
 
     /* ===================== Оформление ===================== */
 
     private void proceedFlow(long chatId, String text) throws Exception {
-        ConversationState st = states.getOrDefault(chatId, ConversationState.IDLE);
-        Session s = sessions.computeIfAbsent(chatId, k -> new Session());
+        Session s = sessions.get(chatId);
+        ConversationState st = s.state;
         String chatIdStr = String.valueOf(chatId);
 
         switch (st) {
             case ENTER_NAME -> {
                 s.fio = text.trim();
                 sendText(chatId, "Введите телефон в формате +7XXXXXXXXXX или 8XXXXXXXXXX:");
-                states.put(chatId, ConversationState.ENTER_PHONE);
+                flow.fire(s, Event.NAME_ENTERED);
             }
             case ENTER_PHONE -> {
                 if (!PHONE_RU.matcher(text.trim()).matches()) {
@@ -523,14 +500,11 @@ public class WinrunBot extends TelegramLongPollingBot {
                 }
                 s.phone = text.trim();
 
-                InlineKeyboardButton b1 = new InlineKeyboardButton("СДЭК"); b1.setCallbackData("del:SDEK");
-                InlineKeyboardButton b2 = new InlineKeyboardButton("Яндекс.Доставка"); b2.setCallbackData("del:YANDEX");
-
                 SendMessage sm = new SendMessage(chatIdStr, "Выберите способ доставки:");
-                sm.setReplyMarkup(inline(List.of(List.of(b1), List.of(b2))));
-                execute(sm);
+                sm.setReplyMarkup(RenderCache.DELIVERY_KB);
+                post(chatId, FLOW, () -> executeAsync(sm));
 
-                states.put(chatId, ConversationState.CHOOSE_DELIVERY);
+                flow.fire(s, Event.PHONE_ENTERED);
             }
             case ENTER_DELIVERY_FIELDS -> {
                 if (s.deliveryType == DeliveryType.SDEK) {
@@ -567,17 +541,15 @@ public class WinrunBot extends TelegramLongPollingBot {
                         """.formatted(
                         p.name, s.selectedColor, s.selectedSize, s.fio, s.phone, s.deliveryType,
                         s.address == null ? "—" : s.address + (s.pvz == null ? "" : "; ПВЗ: " + s.pvz),
-                        p.price > 0 ? p.price : cfg.priceRub()
+                        render.price(p)
                 );
 
-                InlineKeyboardButton ok = new InlineKeyboardButton("Оформить предзаказ ✅");
-                ok.setCallbackData("order:confirm");
-
                 SendMessage reviewMsg = new SendMessage(chatIdStr, review);
-                reviewMsg.setReplyMarkup(inline(List.of(List.of(ok))));
-                execute(reviewMsg);
+                reviewMsg.setReplyMarkup(RenderCache.CONFIRM_ORDER_KB);
+                post(chatId, FLOW, () -> executeAsync(reviewMsg));
 
-                states.put(chatId, ConversationState.REVIEW);
+                s.draftOrderId = null; // новые данные — новый черновик заказа
+                flow.fire(s, Event.DELIVERY_ENTERED);
             }
             default -> sendMainMenu(chatId);
         }
@@ -585,11 +557,18 @@ public class WinrunBot extends TelegramLongPollingBot {
 
     private void finalizeOrder(long chatId) throws Exception {
         Session s = sessions.get(chatId);
-        if (s == null || s.selectedProductId == null || products.find(s.selectedProductId).isEmpty()) {
+        // заказ по этому черновику уже создан — повторное подтверждение только напоминает ссылку
+        if (s.draftOrderId != null && resendDraftPayment(chatId, s.draftOrderId)) return;
+        if (!flow.allows(s.state, Event.PAYMENT_ISSUED)) {
+            sendText(chatId, "Данные заказа не заполнены. Начните заново: «Каталог».");
+            return;
+        }
+
+        if (s.selectedProductId == null || products.find(s.selectedProductId).isEmpty()) {
             sendText(chatId, "Сессия истекла. Начните заново: «Каталог».");
             return;
         }
-        if (orders.countNonFailed() >= cfg.dropLimit()) {
+        if (orders.drop().soldOut()) {
             sendText(chatId, "❌ Предзаказ закрыт: достигнут лимит " + cfg.dropLimit() + " пар.");
             return;
         }
@@ -608,42 +587,90 @@ public class WinrunBot extends TelegramLongPollingBot {
         o.courierComment = s.courierComment;
         o.status = OrderStatus.WAITING_PAYMENT;
         o.paymentStatus = "PENDING";
-        o.amount = p.price > 0 ? p.price : cfg.priceRub();
+        o.amount = render.price(p);
 
-        long id = orders.create(o);
+        // лид уходит в Bitrix из outbox фоном: запись о нём коммитится вместе с заказом, ссылку на оплату не ждём
+        String lead = bitrix.hasConfig() ? OutboxWorker.leadPayload(s.fio, s.phone) : null;
+        Optional<Long> reserved = orders.createReserved(o, lead == null ? null
+                : (c, orderId) -> outbox.enqueue(c, orderId, OutboxRepo.KIND_LEAD_ADD, lead));
+        if (reserved.isEmpty()) {
+            sendText(chatId, "❌ Предзаказ закрыт: достигнут лимит " + cfg.dropLimit() + " пар.");
+            return;
+        }
+        long id = reserved.get();
         o.id = id;
-
-        String leadId = bitrix.createLead(o, s.fio, s.phone);
-        if (leadId != null) orders.setLead(id, leadId);
+        s.draftOrderId = id;
 
         String url = rk.buildPaymentUrl(o);
-        sendText(chatId, "Перейдите к оплате по ссылке (" + o.amount + " ₽):\n" + url);
-        sendText(chatId, "После успешной оплаты вы получите подтверждение здесь. Спасибо!");
+        if (url == null) {
+            sendText(chatId, "Не удалось выставить оплату по заказу №" + id + ". Начните заново: «Каталог».");
+            s.draftOrderId = null;
+            return;
+        }
+        sendText(chatId, PAYMENT, "Перейдите к оплате по ссылке (" + o.amount + " ₽):\n" + url);
+        sendText(chatId, PAYMENT, "После успешной оплаты вы получите подтверждение здесь. Спасибо!");
 
-        states.put(chatId, ConversationState.PAYMENT_LINK_ISSUED);
-        s.draftOrderId = id;
+        flow.fire(s, Event.PAYMENT_ISSUED);
+    }
+
+    /** Повторить ссылку на оплату по уже созданному заказу; false — заказа нет или бронь истекла, создаём новый */
+    private boolean resendDraftPayment(long chatId, long orderId) throws Exception {
+        Optional<Order> existing = orders.find(orderId);
+        if (existing.isEmpty() || "EXPIRED".equals(existing.get().paymentStatus)
+                || "FAILED".equals(existing.get().paymentStatus)) return false;
+        Order o = existing.get();
+        if ("PAID".equals(o.paymentStatus)) {
+            sendText(chatId, PAYMENT, "Заказ №" + o.id + " уже оплачен. Статус — в разделе «Мои заказы».");
+            return true;
+        }
+        if (OrderRepo.PAYMENT_REVIEW.equals(o.paymentStatus)) {
+            sendText(chatId, PAYMENT, "Оплата по заказу №" + o.id + " получена и проверяется оператором: " + cfg.supportUsername());
+            return true;
+        }
+        String url = o.paymentUrl != null ? o.paymentUrl : rk.buildPaymentUrl(o);
+        if (url == null) {
+            // заказ перестал ждать оплату между чтением и записью: перечитываем, PENDING здесь уже не встретится
+            Optional<Order> now = orders.find(orderId);
+            return now.isPresent() && !"PENDING".equals(now.get().paymentStatus) && resendDraftPayment(chatId, orderId);
+        }
+        sendText(chatId, PAYMENT, "Заказ №" + o.id + " уже оформлен. Ссылка на оплату (" + o.amount + " ₽):\n" + url);
+        return true;
     }
 
     /* ===================== Служебные ===================== */
 
     public void notifyPaymentReceived(long chatId, long orderId) {
-        try {
-            sendText(chatId, "✅ Оплата получена! Заказ №" + orderId +
-                    " принят. Статус обновится в разделе «Мои заказы». Спасибо, что стали частью первого дропа Winrun 👟");
-        } catch (Exception ignore) { }
+        sendText(chatId, PAYMENT, "✅ Оплата получена! Заказ №" + orderId +
+                " принят. Статус обновится в разделе «Мои заказы». Спасибо, что стали частью первого дропа Winrun 👟");
+    }
+
+    /** Оплата пришла, но заказ принять нельзя (лимит выбран или заказ в неожиданном статусе) */
+    public void notifyPaymentReview(long chatId, long orderId) {
+        sendText(chatId, PAYMENT, "💳 Оплата по заказу №" + orderId + " получена, но заказ требует проверки. " +
+                "Оператор свяжется с вами и при необходимости вернёт деньги: " + cfg.supportUsername());
+    }
+
+    /** Покупателю пишем только о движении посылки; остальные смены статуса видны в «Моих заказах» */
+    public void notifyStatusChanged(OrderRepo.StatusChange ch) {
+        String text = switch (ch.to()) {
+            case SHIPPED   -> "🚚 Заказ №" + ch.orderId() + " отправлен! Статус — в разделе «Мои заказы».";
+            case DELIVERED -> "✅ Заказ №" + ch.orderId() + " доставлен. Спасибо, что выбрали Winrun 👟";
+            default        -> null;
+        };
+        if (text != null) sendText(ch.telegramId(), PAYMENT, text);
     }
 
     private void showMyOrders(long chatId) throws Exception {
         List<Order> list = orders.listByUser(chatId);
         if (list.isEmpty()) { sendText(chatId, "У вас пока нет заказов."); return; }
+        // показываем статусы из БД (их пишет синхронизация с Bitrix); давно не подтверждённые лиды
+        // обновятся фоном одним batch-запросом, о смене статуса покупатель получит уведомление
+        statusSync.refreshStale(list.stream().map(o -> o.bitrixLeadId).filter(Objects::nonNull).toList());
         StringBuilder sb = new StringBuilder("Ваши последние заказы:\n");
         for (Order o : list) {
             OrderStatus st = o.status;
-            if (o.bitrixLeadId != null) {
-                OrderStatus external = bitrix.fetchLeadStatus(o.bitrixLeadId);
-                if (external != null) st = external;
-            }
-            String nice = switch (st) {
+            String nice = "EXPIRED".equals(o.paymentStatus) ? "⌛ Бронь истекла (не оплачено)"
+                    : OrderRepo.PAYMENT_REVIEW.equals(o.paymentStatus) ? "💳 Оплата получена, заказ на проверке у оператора" : switch (st) {
                 case WAITING_PAYMENT -> "🕓 Ожидание оплаты";
                 case PAID_ACCEPTED   -> "💰 Оплачено, заказ принят";
                 case PREPARING       -> "📦 Готовится к отправке";
@@ -655,46 +682,38 @@ public class WinrunBot extends TelegramLongPollingBot {
         sendText(chatId, sb.toString());
     }
 
-    private InlineKeyboardMarkup inline(List<List<InlineKeyboardButton>> rows) {
-        InlineKeyboardMarkup kb = new InlineKeyboardMarkup();
-        kb.setKeyboard(rows);
-        return kb;
+    private CompletableFuture<Message> sendText(long chatId, String text) {
+        return sendText(chatId, FLOW, text);
     }
 
-    private void sendText(long chatId, String text) throws TelegramApiException {
+    private CompletableFuture<Message> sendText(long chatId, SendScheduler.Priority priority, String text) {
         SendMessage sm = new SendMessage(String.valueOf(chatId), text);
-        sm.setReplyMarkup(mainMenu());
-        execute(sm);
+        sm.setReplyMarkup(RenderCache.MAIN_MENU);
+        return post(chatId, priority, () -> executeAsync(sm));
     }
 
-    private ReplyKeyboard mainMenu() {
-        ReplyKeyboardMarkup k = new ReplyKeyboardMarkup();
-        k.setResizeKeyboard(true);
-
-        KeyboardRow row1 = new KeyboardRow();
-        row1.add(new KeyboardButton("👟 Каталог"));
-
-        KeyboardRow row2 = new KeyboardRow();
-        row2.add(new KeyboardButton("📦 Мои заказы"));
-
-        KeyboardRow row3 = new KeyboardRow();
-        row3.add(new KeyboardButton("ℹ️ О коллекции"));
-        row3.add(new KeyboardButton("💬 Поддержка"));
+    /**
+     * Отправка без ожидания: вызов Bot API встаёт в очередь чата планировщика (лимиты Telegram, повтор на 429),
+     * сообщения одного чата уходят по порядку. Ошибка только логируется; ждать future — по необходимости.
+     */
+    private <T> CompletableFuture<T> post(long chatId, SendScheduler.Priority priority, SendScheduler.AsyncCall<T> c) {
+        CompletableFuture<T> f = sender.submitAsync(chatId, priority, c);
+        f.whenComplete((r, e) -> { if (e != null) logSendFailure(chatId, e); });
+        return f;
+    }
 
-        List<KeyboardRow> rows = new ArrayList<>();
-        rows.add(row1); rows.add(row2); rows.add(row3);
-        k.setKeyboard(rows);
-        return k;
+    private static void logSendFailure(long chatId, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        System.out.println("[TG] Send to " + chatId + " failed: " + cause.getMessage());
     }
 
-    private void sendMainMenu(long chatId) throws TelegramApiException {
-        ReplyKeyboardMarkup k = (ReplyKeyboardMarkup) mainMenu();
+    private void sendMainMenu(long chatId) throws Exception {
         SendMessage sm = new SendMessage(String.valueOf(chatId), "Добро пожаловать в Winrun! Выберите раздел:");
-        sm.setReplyMarkup(k);
-        execute(sm);
+        sm.setReplyMarkup(RenderCache.MAIN_MENU);
+        post(chatId, FLOW, () -> executeAsync(sm));
 
-        states.put(chatId, ConversationState.IDLE);
-        sessions.put(chatId, new Session());
+        flow.fire(sessions.get(chatId), Event.RESET);
+        sessions.reset(chatId);
 
         // ничего не удаляем (по твоему требованию)
     }
@@ -1,80 +1,212 @@
 package com.winrun.db;
 
 import com.winrun.Config;
+import org.sqlite.SQLiteConfig;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Менеджер соединений SQLite в режиме WAL.
+ * Запись идёт через одно выделенное соединение (SQLite всё равно допускает одного писателя),
+ * чтение — через ограниченный пул read-only соединений, которые в WAL не ждут писателя.
+ * У каждого соединения свой кэш подготовленных выражений ({@link #prepare}).
+ */
 public class Database {
+    private static final long BORROW_TIMEOUT_MS = 5_000;
+
     private final Config cfg;
-    private Connection conn;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Connection writer;
+
+    private final BlockingQueue<Connection> idleReaders;
+    private final AtomicInteger openReaders = new AtomicInteger();
+    private final int maxReaders;
+
+    private final Map<Connection, StatementCache> statements = new ConcurrentHashMap<>();
+    private final LongAdder stmtHits = new LongAdder();
+    private final LongAdder stmtMisses = new LongAdder();
+
+    public Database(Config cfg) {
+        this.cfg = cfg;
+        this.maxReaders = Math.max(1, cfg.sqliteReaders());
+        this.idleReaders = new ArrayBlockingQueue<>(maxReaders);
+    }
+
+    /** Чтение на соединении из пула; соединение возвращается в пул после вызова */
+    public <T> T read(SqlFn<T> fn) throws SQLException {
+        Connection c = borrowReader();
+        boolean broken = false;
+        try {
+            return fn.apply(c);
+        } catch (SQLException e) {
+            broken = c.isClosed();
+            throw e;
+        } finally {
+            releaseReader(c, broken);
+        }
+    }
+
+    /** Запись в автокоммите на единственном соединении-писателе */
+    public <T> T write(SqlFn<T> fn) throws SQLException {
+        writeLock.lock();
+        try {
+            return fn.apply(writer());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Подготовленное выражение из кэша соединения {@code c}. Выражение принадлежит кэшу:
+     * закрывать его не нужно, закрывать нужно только ResultSet.
+     */
+    public PreparedStatement prepare(Connection c, String sql) throws SQLException {
+        return cacheFor(c).prepare(sql, false);
+    }
+
+    /** То же, но с возвратом сгенерированных ключей (INSERT) */
+    public PreparedStatement prepareWithKeys(Connection c, String sql) throws SQLException {
+        return cacheFor(c).prepare(sql, true);
+    }
 
-    public Database(Config cfg) { this.cfg = cfg; }
+    public long statementCacheHits()   { return stmtHits.sum(); }
+    public long statementCacheMisses() { return stmtMisses.sum(); }
 
-    public synchronized Connection get() throws SQLException {
-        if (conn == null || conn.isClosed()) {
+    private StatementCache cacheFor(Connection c) {
+        return statements.computeIfAbsent(c, k -> new StatementCache(k, stmtHits, stmtMisses));
+    }
+
+    private void closeConnection(Connection c) {
+        StatementCache sc = statements.remove(c);
+        if (sc != null) sc.close();
+        try { c.close(); } catch (SQLException ignore) {}
+    }
+
+    /** Несколько операций записи одной транзакцией */
+    public <T> T transaction(SqlFn<T> fn) throws SQLException {
+        return write(c -> {
+            c.setAutoCommit(false);
             try {
-                Path p = Path.of(cfg.sqlitePath());
-                if (p.getParent()!=null) Files.createDirectories(p.getParent());
-            } catch (Exception ignored) {}
-            conn = DriverManager.getConnection("jdbc:sqlite:" + cfg.sqlitePath());
-            conn.createStatement().execute("PRAGMA foreign_keys=ON");
+                T res = fn.apply(c);
+                c.commit();
+                return res;
+            } catch (SQLException | RuntimeException e) {
+                try { c.rollback(); } catch (SQLException ignore) {}
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        });
+    }
+
+    private Connection writer() throws SQLException {
+        if (writer == null || writer.isClosed()) {
+            if (writer != null) closeConnection(writer);
+            ensureParentDir();
+            SQLiteConfig sc = tunedConfig();
+            sc.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            sc.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+            sc.enforceForeignKeys(true);
+            writer = sc.createConnection(url());
         }
-        return conn;
+        return writer;
     }
 
-    public void initSchema() throws SQLException {
-        try (Statement st = get().createStatement()) {
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS users(
-                  telegram_id INTEGER PRIMARY KEY,
-                  full_name TEXT,
-                  phone TEXT,
-                  created_at TEXT DEFAULT CURRENT_TIMESTAMP
-                )""");
-
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS products(
-                  id INTEGER PRIMARY KEY,
-                  name TEXT NOT NULL,
-                  description TEXT,
-                  price INTEGER NOT NULL,
-                  image_url TEXT,
-                  bitrix_id TEXT,
-                  colors_csv TEXT,
-                  sizes_csv TEXT,
-                  variants_json TEXT,
-                  active INTEGER DEFAULT 1
-                )""");
-
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS orders(
-                  id INTEGER PRIMARY KEY AUTOINCREMENT,
-                  telegram_id INTEGER NOT NULL,
-                  product_id INTEGER NOT NULL,
-                  color TEXT,
-                  size TEXT,
-                  delivery_type TEXT,
-                  city TEXT,
-                  address TEXT,
-                  pvz TEXT,
-                  courier_comment TEXT,
-                  status TEXT,
-                  payment_status TEXT,
-                  amount INTEGER NOT NULL,
-                  payment_url TEXT,
-                  robokassa_inv_id INTEGER,
-                  bitrix_lead_id TEXT,
-                  created_at TEXT DEFAULT CURRENT_TIMESTAMP,
-                  updated_at TEXT DEFAULT CURRENT_TIMESTAMP,
-                  FOREIGN KEY(product_id) REFERENCES products(id)
-                )""");
+    private Connection borrowReader() throws SQLException {
+        Connection c = idleReaders.poll();
+        if (c != null) return c;
+
+        // пул ещё не заполнен — открываем новое соединение
+        while (true) {
+            int n = openReaders.get();
+            if (n >= maxReaders) break;
+            if (openReaders.compareAndSet(n, n + 1)) {
+                try {
+                    return openReader();
+                } catch (SQLException e) {
+                    openReaders.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+
+        try {
+            c = idleReaders.poll(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader connection", e);
+        }
+        if (c == null) throw new SQLException("Reader pool exhausted (" + maxReaders + " connections)");
+        return c;
+    }
+
+    private void releaseReader(Connection c, boolean broken) {
+        if (broken || !idleReaders.offer(c)) {
+            closeConnection(c);
+            openReaders.decrementAndGet();
+        }
+    }
+
+    private Connection openReader() throws SQLException {
+        // писатель первым переводит файл в WAL и создаёт схему
+        write(c -> null);
+        SQLiteConfig sc = tunedConfig();
+        sc.setReadOnly(true);
+        return sc.createConnection(url());
+    }
+
+    private SQLiteConfig tunedConfig() {
+        SQLiteConfig sc = new SQLiteConfig();
+        sc.setBusyTimeout(5_000);
+        sc.setCacheSize(-cfg.sqliteCacheKb()); // отрицательное значение — в килобайтах
+        sc.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(cfg.sqliteMmapMb() * 1024L * 1024L));
+        sc.setTempStore(SQLiteConfig.TempStore.MEMORY);
+        return sc;
+    }
+
+    private String url() { return "jdbc:sqlite:" + cfg.sqlitePath(); }
+
+    private void ensureParentDir() {
+        try {
+            Path p = Path.of(cfg.sqlitePath());
+            if (p.getParent()!=null) Files.createDirectories(p.getParent());
+        } catch (Exception ignored) {}
+    }
+
+    public void close() {
+        Connection c;
+        while ((c = idleReaders.poll()) != null) closeConnection(c);
+        writeLock.lock();
+        try {
+            if (writer != null) closeConnection(writer);
+        } finally {
+            writeLock.unlock();
         }
+    }
 
-        // Обновление старой БД: попытка добавить недостающий столбец variants_json
-        try (Statement st = get().createStatement()) {
-            st.execute("ALTER TABLE products ADD COLUMN variants_json TEXT");
-        } catch (SQLException ignore) { /* уже есть */ }
+    /** Применить миграции и проверить планы запросов горячего пути */
+    public void initSchema() throws SQLException {
+        write(c -> {
+            int version = Migrations.migrate(c);
+            System.out.println("[DB] Schema version " + version);
+            List<String> scans = Migrations.fullScans(c);
+            for (String scan : scans) {
+                System.out.println("[DB] WARN full table scan: " + scan);
+            }
+            if (!scans.isEmpty() && cfg.sqliteStrictPlans())
+                throw new SQLException("Hot queries fall back to full table scans (SQLITE_STRICT_PLANS): " + scans);
+            return null;
+        });
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,233 @@
+package com.winrun.db;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Версионированные миграции схемы. Применённые шаги записываются в schema_version,
+ * каждый шаг выполняется в своей транзакции вместе с записью о версии.
+ * Новые шаги добавляются только в конец списка.
+ */
+public final class Migrations {
+
+    /** Один шаг миграции */
+    record Step(int version, String description, SqlFn<Void> apply) {}
+
+    private static final List<Step> STEPS = List.of(
+            new Step(1, "base tables", Migrations::baseTables),
+            new Step(2, "products.variants_json", c -> {
+                if (!hasColumn(c, "products", "variants_json"))
+                    exec(c, "ALTER TABLE products ADD COLUMN variants_json TEXT");
+                return null;
+            }),
+            new Step(3, "orders hot-path indexes", c -> {
+                // «Мои заказы»: WHERE telegram_id=? ORDER BY created_at DESC LIMIT 10 — без сортировки
+                exec(c, "CREATE INDEX IF NOT EXISTS idx_orders_user_created ON orders(telegram_id, created_at DESC)");
+                // Robokassa result: WHERE robokassa_inv_id=?
+                exec(c, "CREATE INDEX IF NOT EXISTS idx_orders_inv ON orders(robokassa_inv_id)");
+                // лимит дропа: count(*) по payment_status читается только из индекса
+                exec(c, "CREATE INDEX IF NOT EXISTS idx_orders_payment_status ON orders(payment_status)");
+                return null;
+            }),
+            new Step(4, "orders pending expiry index", c -> {
+                // истечение броней: WHERE payment_status='PENDING' AND created_at < ?;
+                // префикс payment_status по-прежнему покрывает счётчик дропа
+                exec(c, "CREATE INDEX IF NOT EXISTS idx_orders_status_created ON orders(payment_status, created_at)");
+                exec(c, "DROP INDEX IF EXISTS idx_orders_payment_status");
+                return null;
+            }),
+            new Step(5, "telegram file_id cache", c -> {
+                // content_key: sha256 содержимого локального файла или url:<адрес>
+                exec(c, """
+                    CREATE TABLE IF NOT EXISTS tg_file_ids(
+                      content_key TEXT PRIMARY KEY,
+                      file_id TEXT NOT NULL,
+                      created_at TEXT DEFAULT CURRENT_TIMESTAMP
+                    )""");
+                return null;
+            }),
+            new Step(6, "chat sessions", c -> {
+                // data — JSON Session (шаг сценария + выбор + данные доставки), пишется отложенно из SessionStore
+                exec(c, """
+                    CREATE TABLE IF NOT EXISTS chat_sessions(
+                      chat_id INTEGER PRIMARY KEY,
+                      data TEXT NOT NULL,
+                      updated_at TEXT DEFAULT CURRENT_TIMESTAMP
+                    )""");
+                exec(c, "CREATE INDEX IF NOT EXISTS idx_chat_sessions_updated ON chat_sessions(updated_at)");
+                return null;
+            }),
+            new Step(7, "outbox", c -> {
+                // строка пишется в одной транзакции с заказом; доставляет её OutboxWorker.
+                // status: PENDING → SENDING → DONE, либо DEAD после maxAttempts; next_attempt_at — epoch millis
+                exec(c, """
+                    CREATE TABLE IF NOT EXISTS outbox(
+                      id INTEGER PRIMARY KEY AUTOINCREMENT,
+                      order_id INTEGER NOT NULL,
+                      kind TEXT NOT NULL,
+                      payload_json TEXT NOT NULL,
+                      status TEXT NOT NULL DEFAULT 'PENDING',
+                      attempts INTEGER NOT NULL DEFAULT 0,
+                      next_attempt_at INTEGER NOT NULL DEFAULT 0,
+                      last_error TEXT,
+                      created_at TEXT DEFAULT CURRENT_TIMESTAMP
+                    )""");
+                exec(c, "CREATE INDEX IF NOT EXISTS idx_outbox_due ON outbox(status, next_attempt_at)");
+                return null;
+            }),
+            new Step(8, "orders lead index", c -> {
+                // статус из события Bitrix: WHERE bitrix_lead_id=?
+                exec(c, "CREATE INDEX IF NOT EXISTS idx_orders_lead ON orders(bitrix_lead_id)");
+                return null;
+            }),
+            new Step(9, "products.content_hash", c -> {
+                // sha-256 содержимого товара из Bitrix: неизменившиеся товары синхронизация не переписывает
+                if (!hasColumn(c, "products", "content_hash"))
+                    exec(c, "ALTER TABLE products ADD COLUMN content_hash TEXT");
+                return null;
+            }),
+            new Step(10, "products.xml_id", c -> {
+                // внешний код товара в Bitrix: по нему (и по bitrix_id) синхронизация находит локальный товар
+                if (!hasColumn(c, "products", "xml_id"))
+                    exec(c, "ALTER TABLE products ADD COLUMN xml_id TEXT");
+                return null;
+            })
+    );
+
+    /** Запросы горячего пути, которые не должны сканировать таблицу целиком */
+    static final List<String> HOT_QUERIES = List.of(
+            "SELECT * FROM orders WHERE telegram_id=1 ORDER BY created_at DESC LIMIT 10",
+            "SELECT * FROM orders WHERE robokassa_inv_id=1",
+            "SELECT id, telegram_id, status, payment_status FROM orders WHERE bitrix_lead_id='1'",
+            "SELECT 1 FROM orders WHERE bitrix_lead_id='1' LIMIT 1",
+            "SELECT count(*) FROM orders WHERE payment_status IN ('PENDING','PAID')",
+            "SELECT id FROM orders WHERE payment_status='PENDING' AND created_at < datetime('now','-30 minutes') LIMIT 500",
+            "SELECT id FROM outbox WHERE status='PENDING' AND next_attempt_at <= 1 ORDER BY next_attempt_at LIMIT 16",
+            "SELECT id FROM outbox WHERE status='DONE' AND next_attempt_at < 1 LIMIT 500"
+    );
+
+    private Migrations() {}
+
+    /** Применить недостающие шаги; возвращает текущую версию схемы */
+    static int migrate(Connection c) throws SQLException {
+        exec(c, """
+            CREATE TABLE IF NOT EXISTS schema_version(
+              version INTEGER PRIMARY KEY,
+              description TEXT,
+              applied_at TEXT DEFAULT CURRENT_TIMESTAMP
+            )""");
+
+        int current = currentVersion(c);
+        for (Step step : STEPS) {
+            if (step.version() <= current) continue;
+            c.setAutoCommit(false);
+            try {
+                step.apply().apply(c);
+                try (PreparedStatement ps = c.prepareStatement("INSERT INTO schema_version(version, description) VALUES(?,?)")) {
+                    ps.setInt(1, step.version());
+                    ps.setString(2, step.description());
+                    ps.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException | RuntimeException e) {
+                try { c.rollback(); } catch (SQLException ignore) {}
+                throw new SQLException("Migration " + step.version() + " (" + step.description() + ") failed", e);
+            } finally {
+                c.setAutoCommit(true);
+            }
+            current = step.version();
+            System.out.println("[DB] Applied migration " + step.version() + ": " + step.description());
+        }
+        return current;
+    }
+
+    /**
+     * EXPLAIN QUERY PLAN по запросам горячего пути.
+     * Возвращает описания планов, в которых осталось полное сканирование таблицы.
+     */
+    static List<String> fullScans(Connection c) throws SQLException {
+        List<String> out = new ArrayList<>();
+        for (String q : HOT_QUERIES) {
+            try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN " + q)) {
+                while (rs.next()) {
+                    String detail = rs.getString("detail");
+                    if (detail != null && detail.startsWith("SCAN ") && !detail.contains(" USING ")) {
+                        out.add(q + " -> " + detail);
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    private static int currentVersion(Connection c) throws SQLException {
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT coalesce(max(version),0) FROM schema_version")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static Void baseTables(Connection c) throws SQLException {
+        exec(c, """
+            CREATE TABLE IF NOT EXISTS users(
+              telegram_id INTEGER PRIMARY KEY,
+              full_name TEXT,
+              phone TEXT,
+              created_at TEXT DEFAULT CURRENT_TIMESTAMP
+            )""");
+
+        exec(c, """
+            CREATE TABLE IF NOT EXISTS products(
+              id INTEGER PRIMARY KEY,
+              name TEXT NOT NULL,
+              description TEXT,
+              price INTEGER NOT NULL,
+              image_url TEXT,
+              bitrix_id TEXT,
+              colors_csv TEXT,
+              sizes_csv TEXT,
+              variants_json TEXT,
+              active INTEGER DEFAULT 1
+            )""");
+
+        exec(c, """
+            CREATE TABLE IF NOT EXISTS orders(
+              id INTEGER PRIMARY KEY AUTOINCREMENT,
+              telegram_id INTEGER NOT NULL,
+              product_id INTEGER NOT NULL,
+              color TEXT,
+              size TEXT,
+              delivery_type TEXT,
+              city TEXT,
+              address TEXT,
+              pvz TEXT,
+              courier_comment TEXT,
+              status TEXT,
+              payment_status TEXT,
+              amount INTEGER NOT NULL,
+              payment_url TEXT,
+              robokassa_inv_id INTEGER,
+              bitrix_lead_id TEXT,
+              created_at TEXT DEFAULT CURRENT_TIMESTAMP,
+              updated_at TEXT DEFAULT CURRENT_TIMESTAMP,
+              FOREIGN KEY(product_id) REFERENCES products(id)
+            )""");
+        return null;
+    }
+
+    private static boolean hasColumn(Connection c, String table, String column) throws SQLException {
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) return true;
+            }
+            return false;
+        }
+    }
+
+    private static void exec(Connection c, String sql) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.execute(sql);
+        }
+    }
+}
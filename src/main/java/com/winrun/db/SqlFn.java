@@ -0,0 +1,10 @@
+package com.winrun.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/** Работа с соединением, выданным {@link Database} на время одного вызова */
+@FunctionalInterface
+public interface SqlFn<T> {
+    T apply(Connection c) throws SQLException;
+}
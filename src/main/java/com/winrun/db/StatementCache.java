@@ -0,0 +1,56 @@
+package com.winrun.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш подготовленных выражений одного соединения (LRU по тексту SQL).
+ * Соединением в каждый момент пользуется один поток, поэтому синхронизация не нужна.
+ * Живёт и закрывается вместе с соединением.
+ */
+final class StatementCache {
+    private static final int MAX_STATEMENTS = 64;
+
+    private final Connection conn;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final Map<String, PreparedStatement> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> e) {
+            if (size() <= MAX_STATEMENTS) return false;
+            closeQuietly(e.getValue());
+            return true;
+        }
+    };
+
+    StatementCache(Connection conn, LongAdder hits, LongAdder misses) {
+        this.conn = conn; this.hits = hits; this.misses = misses;
+    }
+
+    PreparedStatement prepare(String sql, boolean returnKeys) throws SQLException {
+        String key = returnKeys ? "K:" + sql : sql;
+        PreparedStatement ps = cache.get(key);
+        if (ps != null && !ps.isClosed()) {
+            hits.increment();
+            ps.clearParameters();
+            return ps;
+        }
+        misses.increment();
+        ps = returnKeys ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : conn.prepareStatement(sql);
+        cache.put(key, ps);
+        return ps;
+    }
+
+    void close() {
+        cache.values().forEach(StatementCache::closeQuietly);
+        cache.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try { ps.close(); } catch (SQLException ignore) {}
+    }
+}
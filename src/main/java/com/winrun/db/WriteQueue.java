@@ -0,0 +1,158 @@
+package com.winrun.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Групповой коммит: один поток-писатель забирает мутации из очереди и применяет их пачками,
+ * одной транзакцией на пачку. Пачка закрывается по размеру (maxBatch) или по времени
+ * ожидания после первой мутации (maxDelayMs). Ошибка одной мутации откатывается до её savepoint
+ * и не ломает остальные. Future завершается только после коммита пачки.
+ */
+public class WriteQueue implements AutoCloseable {
+    private final Database db;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Mutation<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private final Object submitLock = new Object();
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder mutations = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private record Mutation<T>(SqlFn<T> fn, CompletableFuture<T> result) {}
+
+    public WriteQueue(Database db, int maxBatch, long maxDelayMs) {
+        this.db = db;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMs));
+        this.worker = new Thread(this::loop, "db-writer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /** Поставить мутацию в очередь; future завершится после коммита её пачки */
+    public <T> CompletableFuture<T> submit(SqlFn<T> fn) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        synchronized (submitLock) { // проверка и постановка атомарны относительно close()
+            if (!running) {
+                f.completeExceptionally(new SQLException("Write queue is closed"));
+                return f;
+            }
+            queue.add(new Mutation<>(fn, f));
+        }
+        f.whenComplete((r, e) -> {
+            if (e != null) System.out.println("[DB] Queued write failed: " + e.getMessage());
+        });
+        return f;
+    }
+
+    /** Дождаться future из {@link #submit}, развернув ошибку в SQLException */
+    public static <T> T await(CompletableFuture<T> f) throws SQLException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a write", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException se) throw se;
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    public int queueDepth()    { return queue.size(); }
+    public long batches()      { return batches.sum(); }
+    public long mutations()    { return mutations.sum(); }
+    public long failures()     { return failures.sum(); }
+
+    private void loop() {
+        List<Mutation<?>> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Mutation<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    long left = deadline - System.nanoTime();
+                    Mutation<?> next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(batch, new SQLException("Write queue interrupted", e));
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Mutation<?>> batch) {
+        List<Runnable> completions = new ArrayList<>(batch.size());
+        try {
+            db.transaction(c -> {
+                for (Mutation<?> m : batch) completions.add(applyOne(c, m));
+                return null;
+            });
+        } catch (SQLException | RuntimeException e) {
+            fail(batch, e);
+            return;
+        }
+        batches.increment();
+        mutations.add(batch.size());
+        completions.forEach(Runnable::run);
+    }
+
+    /** Пачка не записана: каждая её мутация считается неудачной ровно один раз */
+    private void fail(List<Mutation<?>> batch, Exception e) {
+        for (Mutation<?> m : batch) m.result().completeExceptionally(e);
+        failures.add(batch.size());
+    }
+
+    /** Неудача мутации засчитывается вместе с завершением future — только если пачка закоммичена */
+    private <T> Runnable applyOne(Connection c, Mutation<T> m) throws SQLException {
+        Savepoint sp = c.setSavepoint();
+        try {
+            T res = m.fn().apply(c);
+            c.releaseSavepoint(sp);
+            return () -> m.result().complete(res);
+        } catch (SQLException | RuntimeException e) {
+            c.rollback(sp);
+            return () -> {
+                failures.increment();
+                m.result().completeExceptionally(e);
+            };
+        }
+    }
+
+    /**
+     * Дописать всё, что уже в очереди, и остановить поток-писатель. Если писатель не успел за 5 с,
+     * оставшиеся в очереди мутации завершаются ошибкой — ждущие их не повиснут.
+     */
+    @Override
+    public void close() {
+        synchronized (submitLock) { running = false; }
+        try {
+            worker.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Mutation<?>> left = new ArrayList<>();
+        queue.drainTo(left);
+        if (!left.isEmpty()) {
+            System.out.println("[DB] Write queue closed with " + left.size() + " unwritten mutations");
+            fail(left, new SQLException("Write queue is closed"));
+        }
+    }
+}
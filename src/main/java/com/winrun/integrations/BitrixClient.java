@@ -1,96 +1,167 @@
 package com.winrun.integrations;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.winrun.Config;
+import com.winrun.metrics.LatencyHistogram;
+import com.winrun.metrics.Metrics;
 import com.winrun.model.Order;
 import com.winrun.model.OrderStatus;
-import com.winrun.model.Product;
-import com.winrun.repo.OrderRepo;
-import com.winrun.repo.ProductRepo;
 import okhttp3.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+/**
+ * REST-клиент Bitrix24. Все вызовы идут через {@link #call}: общий OkHttp-клиент с явными таймаутами
+ * и пулом keep-alive, ограничение одновременных запросов (лишние ждут не дольше connect-таймаута
+ * и отклоняются), предохранитель на подряд идущие сбои портала и гистограмма задержек по методу.
+ * Портал тормозит — вызывающие быстро получают IOException, а не висят на сокете.
+ */
 public class BitrixClient {
+    /** Общий для интеграций ObjectMapper: потокобезопасен после настройки */
+    static final ObjectMapper JSON = new ObjectMapper();
+    /** Методы с отдельной гистограммой; остальные пишутся в "other" */
+    private static final List<String> METHODS = List.of(
+            "crm.lead.add", "crm.lead.get", "crm.lead.update", "batch", "catalog.product.list", "catalog.product.offer.list", "catalog.product.download");
+
     private final Config cfg;
-    private final ProductRepo productRepo;
-    private final OrderRepo orderRepo;
-    private final OkHttpClient http = new OkHttpClient();
-    private final ObjectMapper om = new ObjectMapper();
+    private final OkHttpClient http;
+    private final Semaphore permits;
+    private final long permitWaitMs;
+    private final CircuitBreaker breaker;
+    private final Map<String, LatencyHistogram> latency = new HashMap<>();
+    private final LongAdder busy = new LongAdder();
+    /** Предел команд в одном вызове batch у Bitrix24 */
+    private static final int BATCH_MAX = 50;
 
-    public BitrixClient(Config cfg, ProductRepo productRepo, OrderRepo orderRepo){
-        this.cfg=cfg; this.productRepo=productRepo; this.orderRepo=orderRepo;
+    public BitrixClient(Config cfg){
+        this.cfg=cfg;
+        this.http = new OkHttpClient.Builder()
+                .connectTimeout(cfg.bitrixConnectTimeoutMs(), TimeUnit.MILLISECONDS)
+                .readTimeout(cfg.bitrixReadTimeoutMs(), TimeUnit.MILLISECONDS)
+                .writeTimeout(cfg.bitrixReadTimeoutMs(), TimeUnit.MILLISECONDS)
+                .callTimeout(cfg.bitrixCallTimeoutMs(), TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(cfg.bitrixMaxConcurrent(), 5, TimeUnit.MINUTES))
+                .retryOnConnectionFailure(true)
+                .build();
+        this.permits = new Semaphore(Math.max(1, cfg.bitrixMaxConcurrent()));
+        this.permitWaitMs = cfg.bitrixConnectTimeoutMs();
+        this.breaker = new CircuitBreaker(cfg.bitrixBreakerFailures(), cfg.bitrixBreakerOpenMs());
+        for (String m : METHODS) latency.put(m, new LatencyHistogram());
+        latency.put("other", new LatencyHistogram());
     }
 
     public boolean hasConfig(){ return cfg.bitrixBase()!=null && !cfg.bitrixBase().isBlank(); }
 
-    /* ======================= КАТАЛОГ ======================= */
+    public CircuitBreaker breaker() { return breaker; }
+
+    /** Задержки по методам, состояние предохранителя и отказы из-за лимита одновременных запросов */
+    public void register(Metrics metrics, String prefix) {
+        latency.forEach((m, h) -> h.register(metrics, prefix + ".latency." + m));
+        metrics.gauge(prefix + ".breaker.state", breaker::stateCode);
+        metrics.gauge(prefix + ".breaker.trips", breaker::trips);
+        metrics.gauge(prefix + ".breaker.rejected", breaker::rejected);
+        metrics.gauge(prefix + ".busy_rejected", busy::sum);
+        metrics.gauge(prefix + ".connections.idle", http.connectionPool()::idleConnectionCount);
+    }
+
+    private Response call(String method, Request req) throws IOException {
+        return call(method, req, 0);
+    }
 
     /**
-     * Тянем один нужный товар по внешнему коду (XML_ID).
-     * Источник XML_ID: переменная окружения BITRIX_PRODUCT_XML_ID, иначе дефолт "212".
-     * После импорта — выключаем (active=0) все остальные товары локально.
+     * Один HTTP-вызов метода REST. Сбой для предохранителя — ошибка сети/таймаут, 5xx и 429;
+     * ответ 4xx — ошибка запроса, портал жив. timeoutMs > 0 сужает общий call-таймаут.
      */
-    public void syncCatalog() {
-        if (!hasConfig()) return;
+    private Response call(String method, Request req, long timeoutMs) throws IOException {
+        boolean acquired;
         try {
-            String xmlId = System.getenv("BITRIX_PRODUCT_XML_ID");
-            if (xmlId == null || xmlId.isBlank()) xmlId = "212";
-
-            HttpUrl url = Objects.requireNonNull(HttpUrl.parse(cfg.bitrixBase()+"catalog.product.list"))
-                    .newBuilder()
-                    .addQueryParameter("filter[=XML_ID]", xmlId)
-                    .addQueryParameter("filter[ACTIVE]", "Y")
-                    .addQueryParameter("select[]", "ID")
-                    .addQueryParameter("select[]", "NAME")
-                    .addQueryParameter("select[]", "DESCRIPTION")
-                    .addQueryParameter("select[]", "XML_ID")
-                    .addQueryParameter("select[]", "DETAIL_PICTURE")
-                    .addQueryParameter("select[]", "PREVIEW_PICTURE")
-                    .build();
-
-            Request req = new Request.Builder().url(url).get().build();
-            try (Response resp = http.newCall(req).execute()) {
-                if (!resp.isSuccessful() || resp.body()==null) {
-                    productRepoPruneAllSafe();
-                    return;
-                }
-                JsonNode root = om.readTree(resp.body().string());
-                JsonNode res = root.get("result");
-                if (res == null || !res.isArray() || res.size()==0) {
-                    productRepoPruneAllSafe();
-                    return;
-                }
-
-                JsonNode it = res.get(0);
-
-                Product p = new Product();
-                p.id = it.path("ID").asInt();
-                p.bitrixId = it.path("ID").asText();
-                p.name = it.path("NAME").asText("");
-                p.description = it.has("DESCRIPTION") ? it.get("DESCRIPTION").asText("") : "";
-                p.price = cfg.priceRub();
-                // imageUrl оставляем пустым — картинку будем скачивать байтами при показе
-                p.imageUrl = "";
+            acquired = permits.tryAcquire(permitWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a Bitrix slot");
+        }
+        if (!acquired) {
+            busy.increment();
+            throw new IOException("Too many concurrent Bitrix calls, " + method + " skipped");
+        }
+        if (!breaker.allow()) { // слот берём раньше: пробный вызов HALF_OPEN не потеряется на лимите
+            permits.release();
+            throw new IOException("Bitrix circuit open, " + method + " skipped");
+        }
+        long start = System.nanoTime();
+        try {
+            Call c = http.newCall(req);
+            if (timeoutMs > 0) c.timeout().timeout(timeoutMs, TimeUnit.MILLISECONDS);
+            Response resp = c.execute();
+            if (resp.code() >= 500 || resp.code() == 429) breaker.onFailure(); else breaker.onSuccess();
+            return resp;
+        } catch (IOException | RuntimeException e) {
+            breaker.onFailure();
+            throw e;
+        } finally {
+            permits.release();
+            latency.getOrDefault(method, latency.get("other")).recordNanos(System.nanoTime() - start);
+        }
+    }
 
-                // Дефолтные опции (как в приложенном коде бота)
-                p.colors = List.of("Белый", "Чёрный", "Серый");
-                p.sizes  = List.of("39","40","41","42","43","44","45","46");
+    /* ======================= КАТАЛОГ ======================= */
 
-                productRepo.upsert(p);
-                productRepo.pruneExcept(Set.of(p.id));
+    /**
+     * Одна страница списочного метода (catalog.product.list, catalog.product.offer.list, ...), начиная с start.
+     * Ответ разбирается потоково: из тела читаются только элементы массива result.itemsKey — каждый
+     * отдаётся в item отдельным небольшим деревом — и курсор next; целиком ответ в память не попадает.
+     * Возвращает next или null, если страница последняя.
+     */
+    public Integer listPage(String method, List<String[]> params, int start, String itemsKey,
+                            Consumer<JsonNode> item) throws IOException {
+        HttpUrl.Builder url = Objects.requireNonNull(HttpUrl.parse(cfg.bitrixBase() + method + ".json")).newBuilder();
+        for (String[] kv : params) url.addQueryParameter(kv[0], kv[1]);
+        url.addQueryParameter("start", String.valueOf(start));
+        Request req = new Request.Builder().url(url.build()).get().build();
+        try (Response resp = call(method, req)) {
+            if (!resp.isSuccessful() || resp.body() == null) throw new IOException(method + " HTTP " + resp.code());
+            Integer next = null;
+            try (JsonParser p = JSON.getFactory().createParser(resp.body().byteStream())) {
+                if (p.nextToken() != JsonToken.START_OBJECT) throw new IOException(method + ": unexpected response");
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = p.currentName();
+                    JsonToken t = p.nextToken();
+                    if ("result".equals(field) && t == JsonToken.START_OBJECT) {
+                        readItems(p, itemsKey, item);
+                    } else if ("next".equals(field) && t == JsonToken.VALUE_NUMBER_INT) {
+                        next = p.getIntValue();
+                    } else if ("error".equals(field)) {
+                        throw new IOException(method + " error: " + p.getValueAsString());
+                    } else {
+                        p.skipChildren();
+                    }
+                }
             }
-        } catch (Exception ignore) {
-            try { productRepoPruneAllSafe(); } catch (Exception e) { /* ignore */ }
+            return next;
         }
     }
 
-    private void productRepoPruneAllSafe() throws Exception {
-        productRepo.pruneExcept(Collections.emptySet());
+    private static void readItems(JsonParser p, String itemsKey, Consumer<JsonNode> item) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken t = p.nextToken();
+            if (itemsKey.equals(field) && t == JsonToken.START_ARRAY) {
+                while (p.nextToken() == JsonToken.START_OBJECT) item.accept(p.readValueAsTree());
+            } else {
+                p.skipChildren();
+            }
+        }
     }
 
     /**
@@ -119,7 +190,7 @@ public class BitrixClient {
                 .build();
 
         Request req = new Request.Builder().url(url).get().build();
-        try (Response resp = http.newCall(req).execute()) {
+        try (Response resp = call("catalog.product.download", req)) {
             if (resp.isSuccessful() && resp.body() != null) {
                 return resp.body().bytes();
             }
@@ -145,11 +216,11 @@ public class BitrixClient {
                 "\nСтатус оплаты: "+o.paymentStatus);
         fields.put("TAGS", cfg.bitrixTag()); // если поле доступно на портале
 
-        RequestBody body = RequestBody.create(new ObjectMapper().writeValueAsBytes(Map.of("fields", fields)), MediaType.parse("application/json"));
+        RequestBody body = RequestBody.create(JSON.writeValueAsBytes(Map.of("fields", fields)), MediaType.parse("application/json"));
         Request req = new Request.Builder().url(cfg.bitrixBase()+"crm.lead.add.json").post(body).build();
-        try (Response resp = http.newCall(req).execute()){
+        try (Response resp = call("crm.lead.add", req)){
             if (!resp.isSuccessful() || resp.body()==null) return null;
-            JsonNode root = om.readTree(resp.body().string());
+            JsonNode root = JSON.readTree(resp.body().string());
             JsonNode id = root.get("result");
             return id==null?null:id.asText();
         }
@@ -160,11 +231,11 @@ public class BitrixClient {
         if (!hasConfig() || leadId==null || leadId.isBlank()) return false;
         try {
             RequestBody body = RequestBody.create(
-                    om.writeValueAsBytes(Map.of("id", leadId, "fields", Map.of("STATUS_ID", statusId))),
+                    JSON.writeValueAsBytes(Map.of("id", leadId, "fields", Map.of("STATUS_ID", statusId))),
                     MediaType.parse("application/json")
             );
             Request req = new Request.Builder().url(cfg.bitrixBase()+"crm.lead.update.json").post(body).build();
-            try (Response resp = http.newCall(req).execute()) {
+            try (Response resp = call("crm.lead.update", req)) {
                 return resp.isSuccessful();
             }
         } catch (Exception e) {
@@ -172,27 +243,66 @@ public class BitrixClient {
         }
     }
 
-    /** Приводим STATUS_ID к UX-статусам бота */
+    /** Приводим STATUS_ID к UX-статусам бота; null — лида нет или его стадия нам неизвестна */
     public OrderStatus fetchLeadStatus(String leadId){
         if (!hasConfig() || leadId==null) return null;
         try {
             HttpUrl url = Objects.requireNonNull(HttpUrl.parse(cfg.bitrixBase()+"crm.lead.get.json"))
                     .newBuilder().addQueryParameter("id", leadId).build();
             Request req = new Request.Builder().url(url).get().build();
-            try (Response resp = http.newCall(req).execute()){
+            try (Response resp = call("crm.lead.get", req)){
                 if (!resp.isSuccessful() || resp.body()==null) return null;
-                JsonNode data = om.readTree(resp.body().string()).get("result");
+                JsonNode data = JSON.readTree(resp.body().string()).get("result");
                 if (data==null) return null;
-                String st = data.path("STATUS_ID").asText("NEW").toUpperCase(Locale.ROOT);
-                return switch (st) {
-                    case "NEW", "PREPAYMENT_INVOICE" -> OrderStatus.WAITING_PAYMENT;
-                    case "IN_PROCESS"                 -> OrderStatus.PAID_ACCEPTED;
-                    case "PREPARATION"                -> OrderStatus.PREPARING;
-                    case "DELIVERY", "WON"            -> OrderStatus.SHIPPED;
-                    case "FINAL_SUCCESS"              -> OrderStatus.DELIVERED;
-                    default                           -> OrderStatus.PAID_ACCEPTED;
-                };
+                return mapStatus(data.path("STATUS_ID").asText("NEW"));
             }
         } catch (Exception e){ return null; }
     }
+
+    /**
+     * Статусы нескольких лидов одним запросом batch (до BATCH_MAX команд crm.lead.get).
+     * Весь вызов ограничен timeoutMs; при ошибке или таймауте — пустая карта, вызывающий показывает
+     * локальный статус. Лиды, которых нет в ответе или с неизвестной стадией, в карту не попадают.
+     */
+    public Map<String, OrderStatus> fetchLeadStatuses(Collection<String> leadIds, long timeoutMs) {
+        Map<String, OrderStatus> out = new HashMap<>();
+        if (!hasConfig() || leadIds.isEmpty()) return out;
+        List<String> ids = leadIds.stream().filter(Objects::nonNull).distinct().limit(BATCH_MAX).toList();
+        Map<String, String> cmd = new LinkedHashMap<>();
+        for (int i = 0; i < ids.size(); i++) cmd.put("l" + i, "crm.lead.get?id=" + ids.get(i));
+        try {
+            RequestBody body = RequestBody.create(JSON.writeValueAsBytes(Map.of("halt", 0, "cmd", cmd)),
+                    MediaType.parse("application/json"));
+            Request req = new Request.Builder().url(cfg.bitrixBase()+"batch.json").post(body).build();
+            try (Response resp = call("batch", req, timeoutMs)) {
+                if (!resp.isSuccessful() || resp.body()==null) return out;
+                JsonNode results = JSON.readTree(resp.body().string()).path("result").path("result");
+                for (int i = 0; i < ids.size(); i++) {
+                    JsonNode lead = results.get("l" + i);
+                    OrderStatus st = lead != null && lead.isObject() ? mapStatus(lead.path("STATUS_ID").asText("NEW")) : null;
+                    if (st != null) out.put(ids.get(i), st);
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("[BITRIX] Batch status lookup failed: " + e.getMessage());
+        }
+        return out;
+    }
+
+    /**
+     * STATUS_ID лида → статус заказа, который видит покупатель.
+     * Неизвестная стадия (JUNK, своя стадия отказа) — null: локальный статус не трогаем.
+     */
+    static OrderStatus mapStatus(String statusId) {
+        OrderStatus st = switch (statusId.toUpperCase(Locale.ROOT)) {
+            case "NEW", "PREPAYMENT_INVOICE" -> OrderStatus.WAITING_PAYMENT;
+            case "IN_PROCESS"                 -> OrderStatus.PAID_ACCEPTED;
+            case "PREPARATION"                -> OrderStatus.PREPARING;
+            case "DELIVERY", "WON"            -> OrderStatus.SHIPPED;
+            case "FINAL_SUCCESS"              -> OrderStatus.DELIVERED;
+            default                           -> null;
+        };
+        if (st == null) System.out.println("[BITRIX] Unknown lead status " + statusId + ", ignored");
+        return st;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,259 @@
+package com.winrun.integrations;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winrun.Config;
+import com.winrun.model.Product;
+import com.winrun.repo.ProductRepo;
+import okhttp3.HttpUrl;
+
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Синхронизация каталога из Bitrix24 по расписанию.
+ * Товары (catalog.product.list) и торговые предложения (catalog.product.offer.list) читаются постранично
+ * по курсору start, ответы разбираются потоково. По каждому товару считается sha-256 содержимого;
+ * в БД уходят только изменившиеся товары и выключение пропавших — одной транзакцией с одной пересборкой
+ * снимка ({@link ProductRepo#applyDelta}). Любая ошибка чтения отменяет весь прогон: частичный
+ * каталог не применяется. Бот читает снимок в памяти и прогона не ждёт.
+ * Товар портала связывается с локальным по bitrix_id, затем по xml_id, затем (только ещё не связанный
+ * локальный товар) по точному названию; связанный сохраняет свой id, цену, размеры и картинки, так что
+ * заказы и сессии продолжают на него указывать. Новый товар получает id из Bitrix, если тот свободен.
+ * Выключаются только товары, связанные с порталом и пропавшие из него; локальные без связи не трогаются.
+ */
+public class CatalogSync implements AutoCloseable {
+    private static final List<String> DEFAULT_SIZES = List.of("39","40","41","42","43","44","45","46");
+    private static final int MAX_PAGES = 1000; // предохранитель от зацикленного курсора
+    private static final ObjectMapper OM = BitrixClient.JSON;
+
+    private final Config cfg;
+    private final BitrixClient bitrix;
+    private final ProductRepo products;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "catalog-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile int lastProducts;
+    private volatile int lastChanged;
+    private volatile long lastDurationMs;
+
+    public CatalogSync(Config cfg, BitrixClient bitrix, ProductRepo products) {
+        this.cfg = cfg;
+        this.bitrix = bitrix;
+        this.products = products;
+    }
+
+    public boolean enabled() {
+        return cfg.catalogSyncMinutes() > 0 && bitrix.hasConfig() && !cfg.bitrixCatalogIblockId().isBlank();
+    }
+
+    public void start() {
+        if (!enabled()) return;
+        long period = cfg.catalogSyncMinutes();
+        // первый прогон сразу, но в своём потоке — старт бота его не ждёт
+        timer.scheduleWithFixedDelay(this::runSafely, 0, period, TimeUnit.MINUTES);
+    }
+
+    public long runs()           { return runs.sum(); }
+    public long failures()       { return failures.sum(); }
+    public int  lastProducts()   { return lastProducts; }
+    public int  lastChanged()    { return lastChanged; }
+    public long lastDurationMs() { return lastDurationMs; }
+
+    private void runSafely() {
+        try {
+            syncOnce();
+        } catch (Exception e) {
+            failures.increment();
+            System.out.println("[CATALOG] Sync failed, catalog left as is: " + e.getMessage());
+        }
+    }
+
+    /** Один прогон; возвращает число записанных товаров */
+    public int syncOnce() throws Exception {
+        long t0 = System.nanoTime();
+        runs.increment();
+
+        List<Product> remote = fetchProducts();
+        if (remote.isEmpty()) throw new IllegalStateException("Bitrix returned no active products"); // не выключаем весь каталог
+        Map<Integer, List<JsonNode>> offers = cfg.bitrixOffersIblockId().isBlank() ? Map.of() : fetchOffers();
+
+        List<Product> all = products.listAll();
+        Map<String, Product> byBitrix = new HashMap<>(), byXml = new HashMap<>(), byName = new HashMap<>();
+        Set<String> ambiguousNames = new HashSet<>();
+        Set<Integer> taken = new HashSet<>();
+        int nextId = 1;
+        for (Product l : all) {
+            taken.add(l.id);
+            nextId = Math.max(nextId, l.id + 1);
+            if (!isBlank(l.bitrixId)) byBitrix.put(l.bitrixId, l);
+            if (!isBlank(l.xmlId)) byXml.put(l.xmlId, l);
+            if (isBlank(l.bitrixId) && isBlank(l.xmlId) && l.name != null) {
+                String key = nameKey(l.name);
+                if (byName.putIfAbsent(key, l) != null) ambiguousNames.add(key);
+            }
+        }
+        ambiguousNames.forEach(byName::remove);
+        for (Product p : remote) nextId = Math.max(nextId, Integer.parseInt(p.bitrixId) + 1);
+
+        Map<Integer, String> hashes = products.contentHashes();
+        Map<Product, String> changed = new LinkedHashMap<>();
+        Set<Integer> keep = new HashSet<>();
+        Set<Integer> linked = new HashSet<>();
+        for (Product p : remote) {
+            Product local = match(p, byBitrix, byXml, byName, linked);
+            int remoteId = Integer.parseInt(p.bitrixId);
+            if (local != null) p.id = local.id;
+            else p.id = taken.add(remoteId) ? remoteId : nextId++;
+            complete(p, local, offers.getOrDefault(remoteId, List.of()));
+            String hash = contentHash(p);
+            keep.add(p.id);
+            if (!hash.equals(hashes.get(p.id))) changed.put(p, hash); // выключенный, но неизменный товар включит prune
+        }
+        // локальные товары без связи с порталом (стартовый каталог) синхронизация не выключает
+        for (Product l : all) {
+            if (l.active && isBlank(l.bitrixId) && isBlank(l.xmlId) && !linked.contains(l.id)) keep.add(l.id);
+        }
+        products.applyDelta(changed, keep);
+
+        lastProducts = remote.size();
+        lastChanged = changed.size();
+        lastDurationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        System.out.println("[CATALOG] Synced " + remote.size() + " products, " + changed.size() + " changed, in " + lastDurationMs + " ms");
+        return changed.size();
+    }
+
+    private List<Product> fetchProducts() throws Exception {
+        List<String[]> params = new ArrayList<>();
+        params.add(new String[]{"filter[iblockId]", cfg.bitrixCatalogIblockId()});
+        params.add(new String[]{"filter[active]", "Y"});
+        if (!cfg.bitrixProductXmlId().isBlank()) params.add(new String[]{"filter[xmlId]", cfg.bitrixProductXmlId()});
+        for (String f : List.of("id", "iblockId", "name", "previewText", "detailText", "xmlId"))
+            params.add(new String[]{"select[]", f});
+
+        List<Product> out = new ArrayList<>();
+        readAll("catalog.product.list", params, "products", it -> {
+            Product p = new Product();
+            int bitrixId = it.path("id").asInt();
+            p.bitrixId = String.valueOf(bitrixId);
+            String xmlId = it.path("xmlId").asText("");
+            p.xmlId = xmlId.isBlank() ? null : xmlId;
+            p.name = it.path("name").asText("");
+            String detail = it.path("detailText").asText("");
+            p.description = detail.isBlank() ? it.path("previewText").asText("") : detail;
+            if (bitrixId > 0) out.add(p);
+        });
+        return out;
+    }
+
+    /** Предложения по id родительского товара */
+    private Map<Integer, List<JsonNode>> fetchOffers() throws Exception {
+        List<String[]> params = new ArrayList<>();
+        params.add(new String[]{"filter[iblockId]", cfg.bitrixOffersIblockId()});
+        params.add(new String[]{"filter[active]", "Y"});
+        List<String> select = new ArrayList<>(List.of("id", "iblockId", "name", "parentId", "detailPicture"));
+        if (!cfg.bitrixColorProperty().isBlank()) select.add(cfg.bitrixColorProperty());
+        for (String f : select) params.add(new String[]{"select[]", f});
+
+        Map<Integer, List<JsonNode>> out = new HashMap<>();
+        readAll("catalog.product.offer.list", params, "offers", it -> {
+            int parent = value(it.path("parentId")).asInt(0);
+            if (parent > 0) out.computeIfAbsent(parent, k -> new ArrayList<>()).add(it);
+        });
+        out.values().forEach(l -> l.sort(Comparator.comparingInt(o -> o.path("id").asInt())));
+        return out;
+    }
+
+    private void readAll(String method, List<String[]> params, String itemsKey,
+                         java.util.function.Consumer<JsonNode> item) throws Exception {
+        Integer start = 0;
+        for (int page = 0; start != null; page++) {
+            if (page >= MAX_PAGES) throw new IllegalStateException(method + ": more than " + MAX_PAGES + " pages");
+            start = bitrix.listPage(method, params, start, itemsKey, item);
+        }
+    }
+
+    /**
+     * Дополнить товар из Bitrix тем, чего в каталоге портала нет: цена, размеры и картинки остаются локальными.
+     * Без предложений варианты берутся из локального товара как есть.
+     */
+    private void complete(Product p, Product local, List<JsonNode> offers) throws Exception {
+        p.price = local != null && local.price > 0 ? local.price : cfg.priceRub();
+        p.sizes = local != null && local.sizes != null && !local.sizes.isEmpty() ? local.sizes : DEFAULT_SIZES;
+        p.colors = List.of();
+        p.imageUrl = "";
+        List<Product.Variant> localVariants = local == null || local.variants == null ? List.of() : local.variants;
+        if (offers.isEmpty()) {
+            p.variants = localVariants;
+        } else {
+            List<Product.Variant> vs = new ArrayList<>();
+            for (JsonNode o : offers) {
+                Product.Variant v = new Product.Variant();
+                String color = cfg.bitrixColorProperty().isBlank() ? "" : value(o.path(cfg.bitrixColorProperty())).asText("");
+                v.color = color.isBlank() ? o.path("name").asText("") : color;
+                v.image = localImage(localVariants, v.color);
+                if (v.image == null) v.image = pictureUrl(o.path("detailPicture"));
+                vs.add(v);
+            }
+            p.variants = List.copyOf(vs);
+        }
+        p.variantsJson = OM.writeValueAsString(p.variants);
+    }
+
+    /** Локальный товар для товара портала; каждый локальный связывается не больше чем с одним */
+    private static Product match(Product p, Map<String, Product> byBitrix, Map<String, Product> byXml,
+                                 Map<String, Product> byName, Set<Integer> linked) {
+        for (Product l : new Product[]{byBitrix.get(p.bitrixId), p.xmlId == null ? null : byXml.get(p.xmlId), byName.get(nameKey(p.name))}) {
+            if (l != null && linked.add(l.id)) return l;
+        }
+        return null;
+    }
+
+    private static String nameKey(String name) { return name.trim().toLowerCase(Locale.ROOT); }
+
+    private static boolean isBlank(String s) { return s == null || s.isBlank(); }
+
+    /** Уже настроенная локальная картинка того же цвета */
+    private static String localImage(List<Product.Variant> local, String color) {
+        for (Product.Variant v : local) {
+            if (v.color != null && v.color.equalsIgnoreCase(color) && v.image != null && !v.image.isBlank()) return v.image;
+        }
+        return null;
+    }
+
+    /** Ссылка картинки из ответа (url бывает относительным — достраиваем от адреса портала) */
+    private String pictureUrl(JsonNode pic) {
+        String url = pic.path("url").asText("");
+        if (url.isBlank()) return null;
+        if (url.startsWith("http://") || url.startsWith("https://")) return url;
+        HttpUrl base = HttpUrl.parse(cfg.bitrixBase());
+        HttpUrl abs = base == null ? null : base.resolve(url);
+        return abs == null ? null : abs.toString();
+    }
+
+    /** Поле-свойство приходит значением, объектом {value: ...} или массивом таких объектов */
+    private static JsonNode value(JsonNode n) {
+        if (n.isArray()) n = n.path(0);
+        return n.isObject() ? n.path("value") : n;
+    }
+
+    private static String contentHash(Product p) throws Exception {
+        byte[] canonical = OM.writeValueAsBytes(List.of(
+                p.bitrixId, p.xmlId == null ? "" : p.xmlId,
+                p.name, p.description == null ? "" : p.description, p.price, p.sizes, p.variantsJson));
+        byte[] d = MessageDigest.getInstance("SHA-256").digest(canonical);
+        return HexFormat.of().formatHex(d);
+    }
+
+    @Override
+    public void close() { timer.shutdownNow(); }
+}
@@ -0,0 +1,68 @@
+package com.winrun.integrations;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Предохранитель внешнего вызова. После failureThreshold неудач подряд размыкается на openMillis —
+ * вызовы отклоняются сразу, без сети. По истечении окна пропускает один пробный вызов (HALF_OPEN):
+ * успех замыкает цепь, неудача размыкает её на следующее окно.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder trips = new LongAdder();
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMillis));
+    }
+
+    /** Можно ли звать сейчас; в HALF_OPEN разрешён только один вызов до его итога */
+    public synchronized boolean allow() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt >= openNanos) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                break;
+            case HALF_OPEN:
+                break;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            if (state != State.OPEN) trips.increment();
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    public synchronized State state() { return state; }
+
+    /** 0 — замкнут, 1 — разомкнут, 2 — пробный вызов */
+    public int stateCode() { return state().ordinal(); }
+
+    public long rejected() { return rejected.sum(); }
+    public long trips()    { return trips.sum(); }
+}
@@ -0,0 +1,131 @@
+package com.winrun.integrations;
+
+import com.winrun.db.WriteQueue;
+import com.winrun.model.OrderStatus;
+import com.winrun.repo.OrderRepo;
+import com.winrun.repo.OrderRepo.StatusChange;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Синхронизация статусов лидов Bitrix24 в orders.status.
+ * Основной путь — push: исходящий вебхук ONCRMLEADUPDATE ({@link #onLeadUpdated}) в фоне дочитывает лид
+ * и пишет статус в заказ. Запасной путь — {@link #refreshStale}: экран «Мои заказы» показывает локальные
+ * статусы сразу, а лиды, не подтверждённые за последние ttl, фоном обновляются одним batch-запросом.
+ * Чтение Bitrix никогда не ждёт. Изменения статусов раздаются слушателям (уведомления покупателю).
+ */
+public class LeadStatusSync implements AutoCloseable {
+    private final BitrixClient bitrix;
+    private final OrderRepo orders;
+    private final long ttlNanos;
+    private final long batchTimeoutMs;
+
+    /** Когда статус лида последний раз подтверждён Bitrix (System.nanoTime) */
+    private final Map<String, Long> freshUntil = new ConcurrentHashMap<>();
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final List<Consumer<StatusChange>> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService pool;
+
+    private final LongAdder events = new LongAdder();
+    private final LongAdder ignored = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder changes = new LongAdder();
+
+    public LeadStatusSync(BitrixClient bitrix, OrderRepo orders, int ttlSeconds, long batchTimeoutMs) {
+        this.bitrix = bitrix;
+        this.orders = orders;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, ttlSeconds));
+        this.batchTimeoutMs = batchTimeoutMs;
+        AtomicInteger n = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "lead-sync-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Вызывается на каждое реально изменённое состояние заказа */
+    public void onChange(Consumer<StatusChange> listener) { listeners.add(listener); }
+
+    /**
+     * Событие из вебхука: статус в событии не приходит, лид дочитываем отдельно и не в потоке запроса.
+     * Лиды без нашего заказа (портал шлёт события по всем лидам) не читаем — лимит и предохранитель Bitrix дороже.
+     */
+    public void onLeadUpdated(String leadId) {
+        if (leadId == null || leadId.isBlank()) return;
+        events.increment();
+        try {
+            if (!orders.hasLead(leadId)) { ignored.increment(); return; }
+        } catch (SQLException e) {
+            System.out.println("[BITRIX] Lead lookup for " + leadId + " failed: " + e.getMessage());
+            return;
+        }
+        freshUntil.remove(leadId);
+        submit(List.of(leadId));
+    }
+
+    /** Обновить в фоне лиды, статус которых не подтверждался дольше ttl */
+    public void refreshStale(Collection<String> leadIds) {
+        long now = System.nanoTime();
+        List<String> stale = new ArrayList<>();
+        for (String id : leadIds) {
+            Long until = freshUntil.get(id);
+            if (id != null && (until == null || until - now <= 0)) stale.add(id);
+        }
+        if (!stale.isEmpty()) submit(stale);
+    }
+
+    public long events()    { return events.sum(); }
+    public long ignored()   { return ignored.sum(); }
+    public long refreshes() { return refreshes.sum(); }
+    public long changes()   { return changes.sum(); }
+    public int  cached()    { return freshUntil.size(); }
+
+    private void submit(List<String> leadIds) {
+        List<String> mine = leadIds.stream().filter(inFlight::add).toList(); // лид уже читается — второй запрос не нужен
+        if (mine.isEmpty()) return;
+        try {
+            pool.execute(() -> {
+                try { fetchAndApply(mine); } finally { mine.forEach(inFlight::remove); }
+            });
+        } catch (RejectedExecutionException e) {
+            mine.forEach(inFlight::remove);
+        }
+    }
+
+    private void fetchAndApply(List<String> leadIds) {
+        refreshes.increment();
+        Map<String, OrderStatus> statuses = leadIds.size() == 1
+                ? singleton(leadIds.get(0), bitrix.fetchLeadStatus(leadIds.get(0)))
+                : bitrix.fetchLeadStatuses(leadIds, batchTimeoutMs);
+        long until = System.nanoTime() + ttlNanos;
+        statuses.forEach((leadId, status) -> {
+            try {
+                for (StatusChange ch : WriteQueue.await(orders.setStatusByLead(leadId, status))) {
+                    changes.increment();
+                    for (Consumer<StatusChange> l : listeners) {
+                        try { l.accept(ch); } catch (Exception e) {
+                            System.out.println("[BITRIX] Status listener failed: " + e.getMessage());
+                        }
+                    }
+                }
+                freshUntil.put(leadId, until);
+            } catch (Exception e) {
+                System.out.println("[BITRIX] Status write for lead " + leadId + " failed: " + e.getMessage());
+            }
+        });
+        if (freshUntil.size() > 10_000) freshUntil.values().removeIf(u -> u - System.nanoTime() <= 0);
+    }
+
+    private static Map<String, OrderStatus> singleton(String leadId, OrderStatus status) {
+        return status == null ? Map.of() : Map.of(leadId, status);
+    }
+
+    @Override
+    public void close() { pool.shutdownNow(); }
+}
@@ -0,0 +1,184 @@
+package com.winrun.integrations;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winrun.db.WriteQueue;
+import com.winrun.model.Order;
+import com.winrun.repo.OrderRepo;
+import com.winrun.repo.OutboxRepo;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Доставка записей outbox в Bitrix24: опрашивает таблицу, раздаёт созревшие записи пулу и пишет итог.
+ * Неудача — повтор с экспоненциальной задержкой (base·2^n с разбросом, не больше MAX_BACKOFF_MS),
+ * после maxAttempts запись уходит в DEAD. Доставка «хотя бы один раз»: если у заказа уже есть лид,
+ * запись просто закрывается, повторный лид не создаётся.
+ * Раз в HOUSEKEEPING_MS поллер удаляет доставленные записи старше retentionDays и обновляет
+ * счётчики PENDING/DEAD — метрики читают их из памяти, а не считают таблицу на каждый опрос.
+ */
+public class OutboxWorker implements AutoCloseable {
+    private static final long MAX_BACKOFF_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long HOUSEKEEPING_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int PURGE_BATCH = 500;
+    private static final ObjectMapper OM = BitrixClient.JSON;
+
+    private final OutboxRepo outbox;
+    private final OrderRepo orders;
+    private final BitrixClient bitrix;
+    private final int parallelism;
+    private final int maxAttempts;
+    private final long baseBackoffMs;
+    private final int retentionDays;
+    private final ExecutorService pool;
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "outbox-poller");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicInteger busy = new AtomicInteger();
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder purged = new LongAdder();
+    private volatile long pending;
+    private volatile long dead;
+
+    public OutboxWorker(OutboxRepo outbox, OrderRepo orders, BitrixClient bitrix,
+                        int parallelism, int maxAttempts, long baseBackoffMs, int retentionDays) {
+        this.outbox = outbox;
+        this.orders = orders;
+        this.bitrix = bitrix;
+        this.parallelism = Math.max(1, parallelism);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseBackoffMs = Math.max(100, baseBackoffMs);
+        this.retentionDays = retentionDays;
+        AtomicInteger n = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.parallelism, r -> {
+            Thread t = new Thread(r, "outbox-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Payload для crm.lead.add: то, чего нет в строке заказа */
+    public static String leadPayload(String fio, String phone) {
+        Map<String, String> m = new LinkedHashMap<>();
+        m.put("fio", fio);
+        m.put("phone", phone);
+        try {
+            return OM.writeValueAsString(m);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void start(long pollMillis) {
+        try {
+            int n = outbox.requeueStale();
+            if (n > 0) System.out.println("[OUTBOX] Requeued " + n + " entries left in SENDING");
+        } catch (SQLException e) {
+            System.out.println("[OUTBOX] Requeue failed: " + e.getMessage());
+        }
+        long period = Math.max(100, pollMillis);
+        poller.scheduleWithFixedDelay(this::poll, period, period, TimeUnit.MILLISECONDS);
+        poller.scheduleWithFixedDelay(this::housekeep, 0, HOUSEKEEPING_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public long delivered() { return delivered.sum(); }
+    public long retried()   { return retried.sum(); }
+    public long purged()    { return purged.sum(); }
+    /** Записи в очереди и в DEAD на момент последнего обслуживания (не старше HOUSEKEEPING_MS) */
+    public long pending()   { return pending; }
+    public long dead()      { return dead; }
+
+    /** Забираем не больше, чем свободных потоков, — остальное дождётся следующего опроса в таблице */
+    void poll() {
+        try {
+            for (OutboxRepo.Entry e : outbox.claimDue(parallelism - busy.get())) {
+                busy.incrementAndGet();
+                pool.execute(() -> {
+                    try { deliver(e); } finally { busy.decrementAndGet(); }
+                });
+            }
+        } catch (Exception e) {
+            System.out.println("[OUTBOX] Poll failed: " + e.getMessage());
+        }
+    }
+
+    private void deliver(OutboxRepo.Entry e) {
+        try {
+            if (!OutboxRepo.KIND_LEAD_ADD.equals(e.kind())) {
+                fail(e, "Unknown kind " + e.kind(), true);
+                return;
+            }
+            Optional<Order> order = orders.find(e.orderId());
+            if (order.isEmpty()) {
+                fail(e, "Order " + e.orderId() + " not found", true);
+                return;
+            }
+            Order o = order.get();
+            if (o.bitrixLeadId != null) { // лид создан прошлой попыткой, итог которой не успел записаться
+                outbox.markDone(e.id());
+                return;
+            }
+            JsonNode p = OM.readTree(e.payloadJson());
+            String leadId = bitrix.createLead(o, p.path("fio").asText(null), p.path("phone").asText(null));
+            if (leadId == null) {
+                fail(e, "crm.lead.add returned no id", false);
+                return;
+            }
+            // лид пишем в заказ до закрытия записи: рестарт между ними не создаст второй лид
+            WriteQueue.await(orders.setLead(o.id, leadId));
+            outbox.markDone(e.id());
+            delivered.increment();
+        } catch (Exception ex) {
+            fail(e, ex.getClass().getSimpleName() + ": " + ex.getMessage(), false);
+        }
+    }
+
+    private void fail(OutboxRepo.Entry e, String error, boolean permanent) {
+        int attempt = e.attempts() + 1;
+        if (permanent || attempt >= maxAttempts) {
+            outbox.markDead(e.id(), error);
+            System.out.println("[OUTBOX] Entry " + e.id() + " (order " + e.orderId() + ") is DEAD after " + attempt + " attempts: " + error);
+            return;
+        }
+        retried.increment();
+        long delay = Math.min(MAX_BACKOFF_MS, baseBackoffMs << Math.min(attempt - 1, 20));
+        delay += ThreadLocalRandom.current().nextLong(delay / 4 + 1); // разброс, чтобы повторы не шли пачкой
+        outbox.markRetry(e.id(), System.currentTimeMillis() + delay, error);
+        System.out.println("[OUTBOX] Entry " + e.id() + " attempt " + attempt + " failed, retry in " + delay + " ms: " + error);
+    }
+
+    void housekeep() {
+        try {
+            if (retentionDays > 0) {
+                int n = outbox.purgeDone(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays), PURGE_BATCH);
+                if (n > 0) purged.add(n);
+            }
+            pending = outbox.count(OutboxRepo.Status.PENDING);
+            dead = outbox.count(OutboxRepo.Status.DEAD);
+        } catch (SQLException e) {
+            System.out.println("[OUTBOX] Housekeeping failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        poller.shutdownNow();
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS)) pool.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.winrun.integrations;
 
 import com.winrun.Config;
+import com.winrun.db.WriteQueue;
 import com.winrun.model.Order;
 import com.winrun.repo.OrderRepo;
+import com.winrun.repo.OrderRepo.PaidResult;
 
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
@@ -20,6 +22,7 @@ public class RobokassaService {
     }
 
     /** Ссылка на оплату (по умолчанию Robokassa классический флоу) */
+    /** Ссылка на оплату; null — заказ уже не ждёт оплаты (истёк, оплачен или на проверке) */
     public String buildPaymentUrl(Order o) throws Exception {
         long invId = o.id; // используем ID заказа как InvId
         String outSum = String.valueOf(o.amount);
@@ -33,7 +36,10 @@ public class RobokassaService {
                 "&SignatureValue=" + sign +
                 "&Culture=ru&Encoding=utf-8" +
                 (cfg.rkIsTest() ? "&IsTest=1" : "");
-        orderRepo.setPayment(o.id, "PENDING", url, invId);
+        if (WriteQueue.await(orderRepo.setPayment(o.id, url, invId)) == 0) {
+            System.out.println("[RK] Order " + o.id + " is no longer pending, payment link not issued");
+            return null;
+        }
         return url;
     }
 
@@ -64,7 +70,8 @@ public class RobokassaService {
 
     private static String urlEnc(String s){ return java.net.URLEncoder.encode(s, StandardCharsets.UTF_8); }
 
-    public void markPaid(long orderId) throws SQLException {
-        orderRepo.setPaid(orderId);
+    /** Отметить оплату; возвращается после коммита, чтобы Robokassa получила OK только для сохранённой оплаты */
+    public PaidResult markPaid(long orderId) throws SQLException {
+        return WriteQueue.await(orderRepo.setPaid(orderId));
     }
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+package com.winrun.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма задержек с логарифмическими корзинами (степени двойки в микросекундах).
+ * Запись без блокировок; перцентили приблизительные — верхняя граница корзины.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder();
+    }
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts[bucket].increment();
+        total.increment();
+        sumMicros.add(micros);
+    }
+
+    public long count() { return total.sum(); }
+
+    public double meanMillis() {
+        long n = total.sum();
+        return n == 0 ? 0 : sumMicros.sum() / 1000.0 / n;
+    }
+
+    /** Перцентиль в миллисекундах, p в (0..1] */
+    public double percentileMillis(double p) {
+        long n = total.sum();
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(p * n), seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i].sum();
+            if (seen >= rank) return (i == 0 ? 1 : (1L << i)) / 1000.0;
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+
+    /** Зарегистрировать count/mean/p50/p99 под префиксом */
+    public void register(Metrics metrics, String prefix) {
+        metrics.gauge(prefix + ".count", this::count);
+        metrics.gauge(prefix + ".mean_ms", this::meanMillis);
+        metrics.gauge(prefix + ".p50_ms", () -> percentileMillis(0.50));
+        metrics.gauge(prefix + ".p99_ms", () -> percentileMillis(0.99));
+    }
+}
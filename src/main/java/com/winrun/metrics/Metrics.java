@@ -0,0 +1,28 @@
+package com.winrun.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Простейший реестр метрик: имя → текущее значение.
+ * Компоненты считают сами, здесь они только регистрируются (в {@code App}) и отдаются на /metrics.
+ */
+public class Metrics {
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentSkipListMap<>();
+
+    public void gauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, value);
+    }
+
+    /** Текстовый вывод «имя значение» построчно, по алфавиту */
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+        gauges.forEach((name, v) -> {
+            Number n;
+            try { n = v.get(); } catch (Exception e) { n = null; }
+            sb.append(name).append(' ').append(n == null ? "NaN" : n).append('\n');
+        });
+        return sb.toString();
+    }
+}
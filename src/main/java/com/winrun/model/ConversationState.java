@@ -1,4 +1,4 @@
-package com.winrun.bot;
+package com.winrun.model;
 
 public enum ConversationState {
     IDLE,
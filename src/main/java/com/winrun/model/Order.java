@@ -12,7 +12,7 @@ public class Order {
     public String pvz;
     public String courierComment;
     public OrderStatus status;
-    public String paymentStatus; // PENDING/PAID/FAILED
+    public String paymentStatus; // PENDING/PAID/FAILED/EXPIRED/REVIEW
     public int amount;
     public String paymentUrl;
     public Long robokassaInvId;
@@ -10,6 +10,10 @@ public class Product {
     /** НЕ используем для карточки (теперь картинка в вариантах), оставлено для совместимости */
     public String imageUrl;
     public String bitrixId;
+    /** Внешний код (XML_ID) товара в Bitrix; вместе с bitrixId связывает локальный товар с порталом */
+    public String xmlId;
+    /** active=1 в БД; выключенные товары видны только через find */
+    public boolean active = true;
 
     /** опциональные поля из старой логики — размеры используем */
     public List<String> colors;
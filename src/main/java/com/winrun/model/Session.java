@@ -1,6 +1,12 @@
 package com.winrun.model;
 
+import java.util.List;
+
+/** Всё состояние одного чата: шаг сценария, выбор и данные оформления. Хранится в SessionStore */
 public class Session {
+    public ConversationState state = ConversationState.IDLE;
+    public long stateSince;           // когда начался текущий шаг (epoch ms), для времени переходов
+
     // Выбор модели/варианта
     public Integer selectedModelId;   // id модели (Product.id)
     public Integer variantIndex;      // текущий индекс варианта (цвета)
@@ -9,6 +15,7 @@ public class Session {
     // Сообщение карточки модели (для редактирования фото/подписи)
     public Integer lastCardMessageId; // messageId отправленного фото/сообщения
     public Boolean lastCardIsPhoto;   // было фото (true) или текст (false)
+    public List<Integer> lastAlbumMessageIds; // сообщения последнего альбома
 
     // Дальше — как было
     public Integer selectedProductId; // для заказа используем id модели
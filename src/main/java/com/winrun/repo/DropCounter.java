@@ -0,0 +1,37 @@
+package com.winrun.repo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Занятые места дропа (заказы PENDING + PAID) в памяти.
+ * Сидится из БД при старте, дальше меняется только вместе с записью заказов в {@link OrderRepo},
+ * поэтому каталогу не нужен count(*) на каждый показ.
+ */
+public class DropCounter {
+    private final int limit;
+    private final AtomicInteger used = new AtomicInteger();
+
+    public DropCounter(int limit) { this.limit = limit; }
+
+    public void seed(int usedInDb) { used.set(usedInDb); }
+
+    public int limit()        { return limit; }
+    public int used()         { return used.get(); }
+    public boolean soldOut()  { return used.get() >= limit; }
+
+    /** Атомарно занять одно место; false — лимит уже выбран */
+    public boolean tryReserve() {
+        while (true) {
+            int n = used.get();
+            if (n >= limit) return false;
+            if (used.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    public void release() { release(1); }
+
+    public void release(int n) {
+        if (n <= 0) return;
+        used.updateAndGet(v -> Math.max(0, v - n));
+    }
+}
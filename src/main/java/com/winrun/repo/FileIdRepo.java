@@ -0,0 +1,50 @@
+package com.winrun.repo;
+
+import com.winrun.db.Database;
+import com.winrun.db.WriteQueue;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Telegram file_id загруженных картинок, ключ — хэш содержимого файла (или URL).
+ * Таблица целиком читается в память при старте, новые file_id пишутся сквозь кэш через очередь записи.
+ */
+public class FileIdRepo {
+    private final Database db;
+    private final WriteQueue writes;
+    private final Map<String, String> cache = new ConcurrentHashMap<>();
+
+    public FileIdRepo(Database db, WriteQueue writes) { this.db = db; this.writes = writes; }
+
+    /** Загрузить все сохранённые file_id; возвращает их количество */
+    public int load() throws SQLException {
+        return db.read(c -> {
+            PreparedStatement ps = db.prepare(c, "SELECT content_key, file_id FROM tg_file_ids");
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) cache.put(rs.getString(1), rs.getString(2));
+            }
+            return cache.size();
+        });
+    }
+
+    public String get(String contentKey) { return cache.get(contentKey); }
+
+    public int size() { return cache.size(); }
+
+    public void put(String contentKey, String fileId) {
+        if (fileId == null || fileId.equals(cache.put(contentKey, fileId))) return;
+        writes.submit(c -> {
+            PreparedStatement ps = db.prepare(c, """
+                INSERT INTO tg_file_ids(content_key, file_id) VALUES(?,?)
+                ON CONFLICT(content_key) DO UPDATE SET file_id=excluded.file_id, created_at=CURRENT_TIMESTAMP
+            """);
+            ps.setString(1, contentKey);
+            ps.setString(2, fileId);
+            return ps.executeUpdate();
+        });
+    }
+}
@@ -1,6 +1,7 @@
 package com.winrun.repo;
 
 import com.winrun.db.Database;
+import com.winrun.db.WriteQueue;
 import com.winrun.model.DeliveryType;
 import com.winrun.model.Order;
 import com.winrun.model.OrderStatus;
@@ -9,108 +10,301 @@ import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class OrderRepo {
     private final Database db;
-    public OrderRepo(Database db){ this.db=db; }
+    private final WriteQueue writes;
+    private final DropCounter drop;
+    public OrderRepo(Database db, WriteQueue writes, DropCounter drop){ this.db=db; this.writes=writes; this.drop=drop; }
+
+    /** Итог отметки оплаты; NEEDS_REVIEW — деньги получены, но заказ не принят: возврат или ручное решение */
+    public enum PaidResult { PAID, ALREADY_PAID, PAID_AFTER_EXPIRY, NEEDS_REVIEW, NOT_FOUND }
+
+    /** payment_status оплаты, которую нельзя принять автоматически; место в дропе она не занимает */
+    public static final String PAYMENT_REVIEW = "REVIEW";
+
+    /** Запись, которая должна закоммититься вместе с новым заказом (например, строка outbox) */
+    @FunctionalInterface
+    public interface AfterInsert {
+        void apply(Connection c, long orderId) throws SQLException;
+    }
+
+    /** Смена статуса заказа, пришедшая из CRM */
+    public record StatusChange(long orderId, long telegramId, OrderStatus from, OrderStatus to) {}
+
+    public DropCounter drop() { return drop; }
+
+    /** Сидинг счётчика дропа из БД (вызывается один раз при старте) */
+    public void seedDropCounter() throws SQLException {
+        drop.seed(countNonFailed());
+    }
+
+    /**
+     * Занять место в дропе и создать заказ. Место занимается атомарно до вставки
+     * и возвращается, если вставка не удалась; строка заказа и есть сохранённая бронь.
+     * Пустой результат — лимит дропа выбран.
+     */
+    public Optional<Long> createReserved(Order o) throws SQLException {
+        return createReserved(o, null);
+    }
+
+    /** То же, но afterInsert выполняется в транзакции вставки: либо есть и заказ, и его запись, либо ничего */
+    public Optional<Long> createReserved(Order o, AfterInsert afterInsert) throws SQLException {
+        if (!drop.tryReserve()) return Optional.empty();
+        try {
+            return Optional.of(create(o, afterInsert));
+        } catch (SQLException | RuntimeException e) {
+            drop.release();
+            throw e;
+        }
+    }
 
     public long create(Order o) throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement("""
+        return create(o, null);
+    }
+
+    public long create(Order o, AfterInsert afterInsert) throws SQLException {
+        if (afterInsert == null) return db.write(c -> insert(c, o));
+        return db.transaction(c -> {
+            long id = insert(c, o);
+            afterInsert.apply(c, id);
+            return id;
+        });
+    }
+
+    private long insert(Connection c, Order o) throws SQLException {
+        PreparedStatement ps = db.prepareWithKeys(c, """
            INSERT INTO orders(telegram_id,product_id,color,size,delivery_type,city,address,pvz,courier_comment,
                               status,payment_status,amount,payment_url,robokassa_inv_id,bitrix_lead_id)
            VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)
-        """, Statement.RETURN_GENERATED_KEYS)) {
-            int i=1;
-            ps.setLong(i++, o.telegramId);
-            ps.setInt(i++, o.productId);
-            ps.setString(i++, o.color);
-            ps.setString(i++, o.size);
-            ps.setString(i++, o.deliveryType==null?null:o.deliveryType.name());
-            ps.setString(i++, o.city);
-            ps.setString(i++, o.address);
-            ps.setString(i++, o.pvz);
-            ps.setString(i++, o.courierComment);
-            ps.setString(i++, o.status.name());
-            ps.setString(i++, o.paymentStatus);
-            ps.setInt(i++, o.amount);
-            ps.setString(i++, o.paymentUrl);
-            if (o.robokassaInvId==null) ps.setNull(i++, Types.INTEGER); else ps.setLong(i++, o.robokassaInvId);
-            ps.setString(i, o.bitrixLeadId);
-            ps.executeUpdate();
-            ResultSet keys = ps.getGeneratedKeys();
+        """);
+        int i=1;
+        ps.setLong(i++, o.telegramId);
+        ps.setInt(i++, o.productId);
+        ps.setString(i++, o.color);
+        ps.setString(i++, o.size);
+        ps.setString(i++, o.deliveryType==null?null:o.deliveryType.name());
+        ps.setString(i++, o.city);
+        ps.setString(i++, o.address);
+        ps.setString(i++, o.pvz);
+        ps.setString(i++, o.courierComment);
+        ps.setString(i++, o.status.name());
+        ps.setString(i++, o.paymentStatus);
+        ps.setInt(i++, o.amount);
+        ps.setString(i++, o.paymentUrl);
+        if (o.robokassaInvId==null) ps.setNull(i++, Types.INTEGER); else ps.setLong(i++, o.robokassaInvId);
+        ps.setString(i, o.bitrixLeadId);
+        ps.executeUpdate();
+        try (ResultSet keys = ps.getGeneratedKeys()) {
             keys.next();
             return keys.getLong(1);
         }
     }
 
-    public void setPayment(long orderId, String status, String url, Long invId) throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement("""
-            UPDATE orders SET payment_status=?, payment_url=?, robokassa_inv_id=?, updated_at=CURRENT_TIMESTAMP WHERE id=?
-        """)) {
-            ps.setString(1,status);
-            ps.setString(2,url);
-            if (invId==null) ps.setNull(3,Types.INTEGER); else ps.setLong(3, invId);
-            ps.setLong(4,orderId);
-            ps.executeUpdate();
-        }
+    /* Изменения статусов идут через групповой коммит; future — для тех, кому нужна durability */
+
+    /**
+     * Сохранить ссылку на оплату. Статус оплаты не трогаем и пишем только в ещё ожидающий заказ:
+     * истёкший, оплаченный или ушедший на проверку заказ повторная ссылка не «оживляет». 0 — заказ уже не PENDING.
+     */
+    public CompletableFuture<Integer> setPayment(long orderId, String url, Long invId) {
+        return writes.submit(c -> {
+            PreparedStatement ps = db.prepare(c, """
+                UPDATE orders SET payment_url=?, robokassa_inv_id=?, updated_at=CURRENT_TIMESTAMP
+                 WHERE id=? AND payment_status='PENDING'
+            """);
+            ps.setString(1,url);
+            if (invId==null) ps.setNull(2,Types.INTEGER); else ps.setLong(2, invId);
+            ps.setLong(3,orderId);
+            return ps.executeUpdate();
+        });
     }
 
-    public void setPaid(long orderId) throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement("""
+    /**
+     * Отметить заказ оплаченным. Повторный колбэк ничего не меняет (ALREADY_PAID).
+     * Бронь истекла, а место вернули в дроп, — занимаем его заново, если лимит ещё не выбран.
+     * Лимит выбран или заказ в неожиданном статусе (FAILED, пусто) — оплата фиксируется как REVIEW
+     * для возврата или ручного решения, заказ не принимается.
+     */
+    public CompletableFuture<PaidResult> setPaid(long orderId) {
+        AtomicBoolean reserved = new AtomicBoolean();
+        CompletableFuture<PaidResult> f = writes.submit(c -> {
+            PreparedStatement sel = db.prepare(c, "SELECT payment_status FROM orders WHERE id=?");
+            sel.setLong(1, orderId);
+            String prev;
+            try (ResultSet rs = sel.executeQuery()) {
+                if (!rs.next()) return PaidResult.NOT_FOUND;
+                prev = rs.getString(1);
+            }
+            if ("PAID".equals(prev) || PAYMENT_REVIEW.equals(prev)) return PaidResult.ALREADY_PAID;
+
+            if ("PENDING".equals(prev)) {
+                accept(c, orderId);
+                return PaidResult.PAID;
+            }
+            if ("EXPIRED".equals(prev)) {
+                if (drop.tryReserve()) {
+                    reserved.set(true);
+                    accept(c, orderId);
+                    return PaidResult.PAID_AFTER_EXPIRY;
+                }
+                review(c, orderId);
+                System.out.println("[DROP] Order " + orderId + " paid after expiry, drop is sold out (" + drop.used() + "/" + drop.limit() + "): needs refund");
+                return PaidResult.NEEDS_REVIEW;
+            }
+            review(c, orderId);
+            System.out.println("[PAY] Order " + orderId + " paid in unexpected state " + prev + ": needs manual review");
+            return PaidResult.NEEDS_REVIEW;
+        });
+        // запись не легла — занятое место возвращаем, повторный колбэк займёт его снова
+        f.whenComplete((r, e) -> { if (e != null && reserved.get()) drop.release(); });
+        return f;
+    }
+
+    private void accept(Connection c, long orderId) throws SQLException {
+        PreparedStatement ps = db.prepare(c, """
             UPDATE orders SET payment_status='PAID', status=?, updated_at=CURRENT_TIMESTAMP WHERE id=?
-        """)) {
-            ps.setString(1, OrderStatus.PAID_ACCEPTED.name());
-            ps.setLong(2, orderId);
-            ps.executeUpdate();
+        """);
+        ps.setString(1, OrderStatus.PAID_ACCEPTED.name());
+        ps.setLong(2, orderId);
+        ps.executeUpdate();
+    }
+
+    private void review(Connection c, long orderId) throws SQLException {
+        PreparedStatement ps = db.prepare(c, "UPDATE orders SET payment_status=?, updated_at=CURRENT_TIMESTAMP WHERE id=?");
+        ps.setString(1, PAYMENT_REVIEW);
+        ps.setLong(2, orderId);
+        ps.executeUpdate();
+    }
+
+    /**
+     * Перевести неоплаченные брони старше ttlMinutes в EXPIRED пачками по batchSize
+     * (по индексу payment_status, created_at) и вернуть места в дроп. Возвращает число истёкших заказов.
+     */
+    public int expirePending(int ttlMinutes, int batchSize) throws SQLException {
+        String age = "-" + ttlMinutes + " minutes";
+        int total = 0;
+        while (true) {
+            int n = db.write(c -> {
+                PreparedStatement ps = db.prepare(c, """
+                    UPDATE orders SET payment_status='EXPIRED', updated_at=CURRENT_TIMESTAMP
+                    WHERE id IN (SELECT id FROM orders
+                                 WHERE payment_status='PENDING' AND created_at < datetime('now', ?)
+                                 LIMIT ?)
+                """);
+                ps.setString(1, age);
+                ps.setInt(2, batchSize);
+                return ps.executeUpdate();
+            });
+            drop.release(n);
+            total += n;
+            if (n < batchSize) return total;
         }
     }
 
-    public void setLead(long orderId, String leadId) throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement("UPDATE orders SET bitrix_lead_id=?, updated_at=CURRENT_TIMESTAMP WHERE id=?")) {
+    public CompletableFuture<Integer> setLead(long orderId, String leadId) {
+        return writes.submit(c -> {
+            PreparedStatement ps = db.prepare(c, "UPDATE orders SET bitrix_lead_id=?, updated_at=CURRENT_TIMESTAMP WHERE id=?");
             ps.setString(1, leadId);
             ps.setLong(2, orderId);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
+    }
+
+    /**
+     * Записать статус из CRM во все заказы лида; возвращает только реально изменённые.
+     * Оплаченный заказ назад в «ожидание оплаты» не переводим: оплата у нас, а лид мог ещё не обновиться.
+     * Неоплаченный (payment_status не PAID) дальше «ожидания оплаты» не двигаем — ни принятия, ни отправки.
+     */
+    public CompletableFuture<List<StatusChange>> setStatusByLead(String leadId, OrderStatus status) {
+        return writes.submit(c -> {
+            PreparedStatement sel = db.prepare(c, "SELECT id, telegram_id, status, payment_status FROM orders WHERE bitrix_lead_id=?");
+            sel.setString(1, leadId);
+            List<StatusChange> changes = new ArrayList<>();
+            try (ResultSet rs = sel.executeQuery()) {
+                while (rs.next()) {
+                    OrderStatus from = OrderStatus.valueOf(rs.getString(3));
+                    if (from == status) continue;
+                    boolean paid = "PAID".equals(rs.getString(4));
+                    if (status == OrderStatus.WAITING_PAYMENT && paid) continue;
+                    // оплату подтверждает только Robokassa: стадия CRM не делает неоплаченный заказ принятым
+                    if (status != OrderStatus.WAITING_PAYMENT && !paid) {
+                        System.out.println("[BITRIX] Lead " + leadId + " moved to " + status + ", but order " + rs.getLong(1)
+                                + " is not paid (" + rs.getString(4) + "): status kept");
+                        continue;
+                    }
+                    changes.add(new StatusChange(rs.getLong(1), rs.getLong(2), from, status));
+                }
+            }
+            PreparedStatement upd = db.prepare(c, "UPDATE orders SET status=?, updated_at=CURRENT_TIMESTAMP WHERE id=?");
+            for (StatusChange ch : changes) {
+                upd.setString(1, status.name());
+                upd.setLong(2, ch.orderId());
+                upd.executeUpdate();
+            }
+            return changes;
+        });
+    }
+
+    /** Есть ли заказ с этим лидом (по индексу idx_orders_lead) */
+    public boolean hasLead(String leadId) throws SQLException {
+        return db.read(c -> {
+            PreparedStatement ps = db.prepare(c, "SELECT 1 FROM orders WHERE bitrix_lead_id=? LIMIT 1");
+            ps.setString(1, leadId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        });
     }
 
     public Optional<Order> find(long id) throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement("SELECT * FROM orders WHERE id=?")) {
+        return db.read(c -> {
+            PreparedStatement ps = db.prepare(c, "SELECT * FROM orders WHERE id=?");
             ps.setLong(1,id);
-            ResultSet rs = ps.executeQuery();
-            if (!rs.next()) return Optional.empty();
-            return Optional.of(map(rs));
-        }
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return Optional.empty();
+                return Optional.of(map(rs));
+            }
+        });
     }
 
     public Optional<Order> findByInvoice(long invId) throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement("SELECT * FROM orders WHERE robokassa_inv_id=?")) {
+        return db.read(c -> {
+            PreparedStatement ps = db.prepare(c, "SELECT * FROM orders WHERE robokassa_inv_id=?");
             ps.setLong(1,invId);
-            ResultSet rs = ps.executeQuery();
-            if (!rs.next()) return Optional.empty();
-            return Optional.of(map(rs));
-        }
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return Optional.empty();
+                return Optional.of(map(rs));
+            }
+        });
     }
 
     public List<Order> listByUser(long telegramId) throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement("""
-            SELECT * FROM orders WHERE telegram_id=? ORDER BY created_at DESC LIMIT 10
-        """)) {
+        return db.read(c -> {
+            PreparedStatement ps = db.prepare(c, """
+                SELECT * FROM orders WHERE telegram_id=? ORDER BY created_at DESC LIMIT 10
+            """);
             ps.setLong(1,telegramId);
-            ResultSet rs = ps.executeQuery();
-            List<Order> out = new ArrayList<>();
-            while (rs.next()) out.add(map(rs));
-            return out;
-        }
+            try (ResultSet rs = ps.executeQuery()) {
+                List<Order> out = new ArrayList<>();
+                while (rs.next()) out.add(map(rs));
+                return out;
+            }
+        });
     }
 
     public int countNonFailed() throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement("""
-            SELECT count(*) FROM orders WHERE payment_status IN ('PENDING','PAID')
-        """)) {
-            ResultSet rs = ps.executeQuery();
-            rs.next();
-            return rs.getInt(1);
-        }
+        return db.read(c -> {
+            PreparedStatement ps = db.prepare(c, """
+                SELECT count(*) FROM orders WHERE payment_status IN ('PENDING','PAID')
+            """);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        });
     }
 
     private static Order map(ResultSet rs) throws SQLException {
@@ -135,4 +329,4 @@ public class OrderRepo {
         o.bitrixLeadId = rs.getString("bitrix_lead_id");
         return o;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,139 @@
+package com.winrun.repo;
+
+import com.winrun.db.Database;
+import com.winrun.db.WriteQueue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Исходящие вызовы во внешние системы (transactional outbox).
+ * Строка добавляется в транзакции, которая создаёт заказ ({@link #enqueue}), поэтому заказ без записи
+ * о лиде или запись без заказа невозможны. Доставку делает отдельный воркер: забирает созревшие строки
+ * ({@link #claimDue}), а итог отмечает через групповой коммит.
+ */
+public class OutboxRepo {
+    public static final String KIND_LEAD_ADD = "crm.lead.add";
+
+    public enum Status { PENDING, SENDING, DONE, DEAD }
+
+    /** Строка outbox, взятая в работу */
+    public record Entry(long id, long orderId, String kind, String payloadJson, int attempts) {}
+
+    private final Database db;
+    private final WriteQueue writes;
+    public OutboxRepo(Database db, WriteQueue writes){ this.db=db; this.writes=writes; }
+
+    /** Добавить запись на соединении вызывающей транзакции */
+    public void enqueue(Connection c, long orderId, String kind, String payloadJson) throws SQLException {
+        PreparedStatement ps = db.prepare(c, """
+            INSERT INTO outbox(order_id, kind, payload_json, status, attempts, next_attempt_at)
+            VALUES(?,?,?,'PENDING',0,?)
+        """);
+        ps.setLong(1, orderId);
+        ps.setString(2, kind);
+        ps.setString(3, payloadJson);
+        ps.setLong(4, System.currentTimeMillis());
+        ps.executeUpdate();
+    }
+
+    /**
+     * Забрать до limit созревших записей и перевести их в SENDING одной транзакцией,
+     * чтобы следующий опрос не выдал их повторно.
+     */
+    public List<Entry> claimDue(int limit) throws SQLException {
+        if (limit <= 0) return List.of();
+        return db.transaction(c -> {
+            PreparedStatement sel = db.prepare(c, """
+                SELECT id, order_id, kind, payload_json, attempts FROM outbox
+                WHERE status='PENDING' AND next_attempt_at <= ? ORDER BY next_attempt_at LIMIT ?
+            """);
+            sel.setLong(1, System.currentTimeMillis());
+            sel.setInt(2, limit);
+            List<Entry> out = new ArrayList<>();
+            try (ResultSet rs = sel.executeQuery()) {
+                while (rs.next()) out.add(new Entry(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getString(4), rs.getInt(5)));
+            }
+            PreparedStatement upd = db.prepare(c, "UPDATE outbox SET status='SENDING' WHERE id=?");
+            for (Entry e : out) {
+                upd.setLong(1, e.id());
+                upd.executeUpdate();
+            }
+            return out;
+        });
+    }
+
+    /** После рестарта: записи, застрявшие в SENDING, снова в очередь. Возвращает их число */
+    public int requeueStale() throws SQLException {
+        return db.write(c -> db.prepare(c, "UPDATE outbox SET status='PENDING' WHERE status='SENDING'").executeUpdate());
+    }
+
+    /** Доставлено; next_attempt_at становится временем доставки — по нему чистятся старые записи */
+    public CompletableFuture<Integer> markDone(long id) {
+        return writes.submit(c -> {
+            PreparedStatement ps = db.prepare(c, """
+                UPDATE outbox SET status='DONE', attempts=attempts+1, next_attempt_at=?, last_error=NULL WHERE id=?
+            """);
+            ps.setLong(1, System.currentTimeMillis());
+            ps.setLong(2, id);
+            return ps.executeUpdate();
+        });
+    }
+
+    /** Неудачная попытка: следующая не раньше nextAttemptAt (epoch millis) */
+    public CompletableFuture<Integer> markRetry(long id, long nextAttemptAt, String error) {
+        return writes.submit(c -> {
+            PreparedStatement ps = db.prepare(c, """
+                UPDATE outbox SET status='PENDING', attempts=attempts+1, next_attempt_at=?, last_error=? WHERE id=?
+            """);
+            ps.setLong(1, nextAttemptAt);
+            ps.setString(2, error);
+            ps.setLong(3, id);
+            return ps.executeUpdate();
+        });
+    }
+
+    /** Попытки исчерпаны — запись остаётся в таблице для ручного разбора */
+    public CompletableFuture<Integer> markDead(long id, String error) {
+        return writes.submit(c -> {
+            PreparedStatement ps = db.prepare(c, "UPDATE outbox SET status='DEAD', attempts=attempts+1, last_error=? WHERE id=?");
+            ps.setString(1, error);
+            ps.setLong(2, id);
+            return ps.executeUpdate();
+        });
+    }
+
+    /** Удалить DONE-записи, доставленные раньше before (epoch millis), пачками по batchSize; возвращает их число */
+    public int purgeDone(long before, int batchSize) throws SQLException {
+        int total = 0;
+        while (true) {
+            int n = db.write(c -> {
+                PreparedStatement ps = db.prepare(c, """
+                    DELETE FROM outbox WHERE id IN (SELECT id FROM outbox
+                                                    WHERE status='DONE' AND next_attempt_at < ? LIMIT ?)
+                """);
+                ps.setLong(1, before);
+                ps.setInt(2, batchSize);
+                return ps.executeUpdate();
+            });
+            total += n;
+            if (n < batchSize) return total;
+        }
+    }
+
+    public int count(Status status) throws SQLException {
+        return db.read(c -> {
+            PreparedStatement ps = db.prepare(c, "SELECT count(*) FROM outbox WHERE status=?");
+            ps.setString(1, status.name());
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        });
+    }
+}
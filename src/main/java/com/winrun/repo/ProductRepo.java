@@ -10,82 +10,160 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 public class ProductRepo {
+    private static final TypeReference<List<Product.Variant>> VARIANTS = new TypeReference<>(){};
+
     private final Database db;
     private final ObjectMapper om = new ObjectMapper();
 
+    /**
+     * Неизменяемый снимок каталога: все товары по id (find ищет и выключенные) и активные по порядку id.
+     * Товары в снимке полностью разобраны (CSV, variants_json) и общие для всех чатов — их не меняем.
+     */
+    private record Snapshot(Map<Integer, Product> byId, List<Product> active) {}
+    private volatile Snapshot snapshot;
+    private final List<Runnable> changeListeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+
     public ProductRepo(Database db){ this.db=db; }
 
+    /** Вызывается после каждой пересборки снимка из-за изменения таблицы (upsert/pruneExcept/seed) */
+    public void onChange(Runnable listener) { changeListeners.add(listener); }
+
+    /* ==== Чтение — только из снимка в памяти, без SQL и без JSON ==== */
+
     public List<Product> listActive() throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement(
-                "SELECT id,name,description,price,image_url,bitrix_id,colors_csv,sizes_csv,variants_json FROM products WHERE active=1 ORDER BY id")) {
-            ResultSet rs = ps.executeQuery();
-            List<Product> out = new ArrayList<>();
-            while (rs.next()){
-                out.add(map(rs));
-            }
-            return out;
-        }
+        return snapshot().active();
     }
 
     public Optional<Product> find(int id) throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement(
-                "SELECT id,name,description,price,image_url,bitrix_id,colors_csv,sizes_csv,variants_json FROM products WHERE id=?")) {
-            ps.setInt(1, id);
-            ResultSet rs = ps.executeQuery();
-            if (!rs.next()) return Optional.empty();
-            return Optional.of(map(rs));
+        return Optional.ofNullable(snapshot().byId().get(id));
+    }
+
+    /** Все товары, включая выключенные, по порядку id */
+    public List<Product> listAll() throws SQLException {
+        List<Product> all = new ArrayList<>(snapshot().byId().values());
+        all.sort(Comparator.comparingInt(p -> p.id));
+        return all;
+    }
+
+    private Snapshot snapshot() throws SQLException {
+        Snapshot s = snapshot;
+        return s != null ? s : reload();
+    }
+
+    /**
+     * Перечитать таблицу products и атомарно подменить снимок.
+     * synchronized: снимок, прочитанный раньше, не может затереть более свежий.
+     */
+    private synchronized Snapshot reload() throws SQLException {
+        List<Product> all = db.read(c -> {
+            PreparedStatement ps = db.prepare(c,
+                    "SELECT id,name,description,price,image_url,bitrix_id,xml_id,colors_csv,sizes_csv,variants_json,active FROM products ORDER BY id");
+            try (ResultSet rs = ps.executeQuery()) {
+                List<Product> out = new ArrayList<>();
+                while (rs.next()) out.add(map(rs));
+                return out;
+            }
+        });
+        Map<Integer, Product> byId = new HashMap<>(all.size() * 2);
+        List<Product> active = new ArrayList<>();
+        for (Product p : all) {
+            byId.put(p.id, p);
+            if (p.active) active.add(p);
         }
+        Snapshot s = new Snapshot(Collections.unmodifiableMap(byId), List.copyOf(active));
+        boolean changed = snapshot != null;
+        snapshot = s;
+        if (changed) changeListeners.forEach(Runnable::run);
+        return s;
     }
 
     public void upsert(Product p) throws SQLException {
-        try (PreparedStatement ps = db.get().prepareStatement("""
-            INSERT INTO products(id,name,description,price,image_url,bitrix_id,colors_csv,sizes_csv,variants_json,active)
-            VALUES(?,?,?,?,?,?,?,?,?,1)
+        write(p);
+        reload();
+    }
+
+    private void write(Product p) throws SQLException {
+        db.write(c -> write(c, p, null));
+    }
+
+    /** contentHash — отпечаток содержимого из синхронизации каталога; null — товар записан не ею */
+    private int write(Connection c, Product p, String contentHash) throws SQLException {
+        PreparedStatement ps = db.prepare(c, """
+            INSERT INTO products(id,name,description,price,image_url,bitrix_id,xml_id,colors_csv,sizes_csv,variants_json,content_hash,active)
+            VALUES(?,?,?,?,?,?,?,?,?,?,?,1)
             ON CONFLICT(id) DO UPDATE SET
               name=excluded.name,
               description=excluded.description,
               price=excluded.price,
               image_url=excluded.image_url,
               bitrix_id=excluded.bitrix_id,
+              xml_id=excluded.xml_id,
               colors_csv=excluded.colors_csv,
               sizes_csv=excluded.sizes_csv,
               variants_json=excluded.variants_json,
+              content_hash=excluded.content_hash,
               active=1
-        """)) {
-            ps.setInt(1,p.id);
-            ps.setString(2,p.name);
-            ps.setString(3,p.description);
-            ps.setInt(4,p.price);
-            ps.setString(5,p.imageUrl);
-            ps.setString(6,p.bitrixId);
-            ps.setString(7,listToCsv(p.colors));
-            ps.setString(8,listToCsv(p.sizes));
-            ps.setString(9, p.variantsJson);
-            ps.executeUpdate();
-        }
+        """);
+        ps.setInt(1,p.id);
+        ps.setString(2,p.name);
+        ps.setString(3,p.description);
+        ps.setInt(4,p.price);
+        ps.setString(5,p.imageUrl);
+        ps.setString(6,p.bitrixId);
+        ps.setString(7,p.xmlId);
+        ps.setString(8,listToCsv(p.colors));
+        ps.setString(9,listToCsv(p.sizes));
+        ps.setString(10, p.variantsJson);
+        ps.setString(11, contentHash);
+        return ps.executeUpdate();
     }
 
-    // Добавить в ProductRepo
+    /**
+     * Оставить активными только keepIds, остальные выключить (active=0).
+     * Список id передаётся одним JSON-параметром, поэтому текст SQL постоянный и выражение берётся из кэша.
+     */
     public void pruneExcept(java.util.Collection<Integer> keepIds) throws SQLException {
-        // Если список пуст — выключаем всё
-        if (keepIds == null || keepIds.isEmpty()) {
-            try (Statement st = db.get().createStatement()) {
-                st.executeUpdate("UPDATE products SET active=0");
-            }
-            return;
-        }
+        db.write(c -> prune(c, keepIds));
+        reload();
+    }
 
-        // Построим плейсхолдеры (?, ?, ?, ...)
-        String placeholders = keepIds.stream().map(x -> "?").collect(java.util.stream.Collectors.joining(","));
-        String sql = "UPDATE products SET active = CASE WHEN id IN (" + placeholders + ") THEN 1 ELSE 0 END";
+    /** Возвращает число товаров, у которых изменился флаг active */
+    private int prune(Connection c, java.util.Collection<Integer> keepIds) throws SQLException {
+        String idsJson = keepIds == null ? "[]"
+                : keepIds.stream().map(String::valueOf).collect(Collectors.joining(",", "[", "]"));
+        PreparedStatement ps = db.prepare(c, """
+            UPDATE products SET active = CASE WHEN id IN (SELECT value FROM json_each(?1)) THEN 1 ELSE 0 END
+            WHERE active <> CASE WHEN id IN (SELECT value FROM json_each(?1)) THEN 1 ELSE 0 END
+        """);
+        ps.setString(1, idsJson);
+        return ps.executeUpdate();
+    }
 
-        try (PreparedStatement ps = db.get().prepareStatement(sql)) {
-            int i = 1;
-            for (Integer id : keepIds) {
-                ps.setInt(i++, id);
+    /** Отпечатки содержимого, записанные синхронизацией каталога: id → content_hash */
+    public Map<Integer, String> contentHashes() throws SQLException {
+        return db.read(c -> {
+            PreparedStatement ps = db.prepare(c, "SELECT id, content_hash FROM products WHERE content_hash IS NOT NULL");
+            try (ResultSet rs = ps.executeQuery()) {
+                Map<Integer, String> out = new HashMap<>();
+                while (rs.next()) out.put(rs.getInt(1), rs.getString(2));
+                return out;
             }
-            ps.executeUpdate();
-        }
+        });
+    }
+
+    /**
+     * Применить результат синхронизации одной транзакцией: записать изменившиеся товары (с их отпечатками)
+     * и оставить активными только keepIds. Снимок пересобирается один раз и только если что-то поменялось.
+     * Возвращает число затронутых строк.
+     */
+    public int applyDelta(Map<Product, String> changed, java.util.Collection<Integer> keepIds) throws SQLException {
+        int n = db.transaction(c -> {
+            int rows = 0;
+            for (Map.Entry<Product, String> e : changed.entrySet()) rows += write(c, e.getKey(), e.getValue());
+            return rows + prune(c, keepIds);
+        });
+        if (n > 0) reload();
+        return n;
     }
 
     private Product map(ResultSet rs) throws SQLException {
@@ -96,12 +174,14 @@ public class ProductRepo {
         p.price = rs.getInt("price");
         p.imageUrl = rs.getString("image_url");
         p.bitrixId = rs.getString("bitrix_id");
-        p.colors = csvToList(rs.getString("colors_csv"));
-        p.sizes  = csvToList(rs.getString("sizes_csv"));
+        p.xmlId = rs.getString("xml_id");
+        p.active = rs.getInt("active") == 1;
+        p.colors = List.copyOf(csvToList(rs.getString("colors_csv")));
+        p.sizes  = List.copyOf(csvToList(rs.getString("sizes_csv")));
         p.variantsJson = rs.getString("variants_json");
         try {
             if (p.variantsJson != null && !p.variantsJson.isBlank()) {
-                p.variants = om.readValue(p.variantsJson, new TypeReference<List<Product.Variant>>(){});
+                p.variants = List.copyOf(om.readValue(p.variantsJson, VARIANTS));
             } else {
                 p.variants = Collections.emptyList();
             }
@@ -201,7 +281,8 @@ public class ProductRepo {
             p.colors = List.of(); // не используем
             p.sizes  = List.of("39","40","41","42","43","44","45","46");
             p.variantsJson = om.writeValueAsString(node.get("variants"));
-            upsert(p);
+            write(p);
         }
+        reload();
     }
 }
\ No newline at end of file
@@ -0,0 +1,50 @@
+package com.winrun.repo;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * По таймеру переводит неоплаченные брони старше TTL в EXPIRED и возвращает их места в дроп.
+ * Оплата, пришедшая позже, обрабатывается в {@link OrderRepo#setPaid}.
+ */
+public class ReservationSweeper implements AutoCloseable {
+    private static final int BATCH = 500;
+
+    private final OrderRepo orders;
+    private final int ttlMinutes;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "reservation-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+    private final LongAdder expired = new LongAdder();
+
+    public ReservationSweeper(OrderRepo orders, int ttlMinutes) {
+        this.orders = orders;
+        this.ttlMinutes = ttlMinutes;
+    }
+
+    public void start(int periodSeconds) {
+        if (ttlMinutes <= 0) return; // TTL выключен
+        timer.scheduleWithFixedDelay(this::sweep, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public long expired() { return expired.sum(); }
+
+    void sweep() {
+        try {
+            int n = orders.expirePending(ttlMinutes, BATCH);
+            if (n > 0) {
+                expired.add(n);
+                System.out.println("[DROP] Expired " + n + " unpaid reservations, used " + orders.drop().used() + "/" + orders.drop().limit());
+            }
+        } catch (Exception e) {
+            System.out.println("[DROP] Sweep failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() { timer.shutdownNow(); }
+}
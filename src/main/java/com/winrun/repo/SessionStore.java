@@ -0,0 +1,290 @@
+package com.winrun.repo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winrun.db.Database;
+import com.winrun.db.WriteQueue;
+import com.winrun.model.Session;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Сессии чатов: ограниченный по размеру и времени простоя кэш в памяти поверх таблицы chat_sessions.
+ * Изменения пишутся отложенно — раз в flushSeconds все изменённые сессии уходят одной мутацией в {@link WriteQueue}.
+ * Выгруженная (или потерянная при рестарте) сессия лениво поднимается из БД на следующем апдейте чата.
+ * Пока запись сессии не закоммичена, её JSON лежит в pending — чтение не увидит устаревшую строку.
+ * Обработчик чата держит его блокировку ({@link #hold}); фоновый сброс снимает и выгружает только
+ * незанятые сессии, поэтому JSON никогда не снимается с сессии посреди изменения.
+ */
+public class SessionStore implements AutoCloseable {
+    private static final int BASE_BYTES = 256; // грубая оценка объекта Session без строк
+    private static final long PURGE_EVERY_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private static final class Entry {
+        final Session session;
+        final ReentrantLock lock; // блокировка чата: переходит к новой сессии при reset
+        volatile long lastAccess = System.nanoTime();
+        volatile boolean dirty;
+        volatile int bytes = BASE_BYTES;
+        Entry(Session session, ReentrantLock lock) { this.session = session; this.lock = lock; }
+        Entry(Session session) { this(session, new ReentrantLock()); }
+    }
+
+    private final Database db;
+    private final WriteQueue writes;
+    private final int maxEntries;
+    private final long idleNanos;
+    private final int retentionDays;
+    private final ObjectMapper om = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Map<Long, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<Long, String> pending = new ConcurrentHashMap<>();
+    /** Выгруженные сессии, запись которых не удалась: повторяются со следующим сбросом */
+    private final Map<Long, String> retry = new ConcurrentHashMap<>();
+    private long lastPurgeAt = System.nanoTime();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-store");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder flushed = new LongAdder();
+
+    public SessionStore(Database db, WriteQueue writes, int maxEntries, int idleMinutes, int retentionDays) {
+        this.db = db;
+        this.writes = writes;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.idleNanos = TimeUnit.MINUTES.toNanos(Math.max(1, idleMinutes));
+        this.retentionDays = retentionDays;
+    }
+
+    public void start(int flushSeconds) {
+        long period = Math.max(1, flushSeconds);
+        timer.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.SECONDS);
+    }
+
+    /** Сессия чата: из памяти, иначе из БД, иначе новая */
+    public Session get(long chatId) throws SQLException {
+        Entry e = cache.get(chatId);
+        if (e != null) {
+            hits.increment();
+            e.lastAccess = System.nanoTime();
+            return e.session;
+        }
+        Session loaded = load(chatId);
+        Entry fresh = new Entry(loaded);
+        e = cache.putIfAbsent(chatId, fresh);
+        return e != null ? e.session : loaded;
+    }
+
+    /**
+     * Захватить чат на время обработки его апдейта; вернувшуюся блокировку нужно отпустить.
+     * Пока она взята, сессия не выгружается и не снимается в JSON.
+     */
+    public Lock hold(long chatId) throws SQLException {
+        while (true) {
+            get(chatId);
+            Entry e = cache.get(chatId);
+            if (e == null) continue; // выгрузили между get и захватом — берём заново
+            e.lock.lock();
+            Entry cur = cache.get(chatId);
+            if (cur != null && cur.lock == e.lock) return e.lock;
+            e.lock.unlock();
+        }
+    }
+
+    /** Отметить сессию изменённой; если её успели выгрузить — вернуть в кэш */
+    public void save(long chatId, Session s) {
+        Entry e = cache.computeIfAbsent(chatId, k -> new Entry(s));
+        if (e.session != s) return; // сессию уже заменили (reset) — старую не пишем
+        e.lastAccess = System.nanoTime();
+        e.dirty = true;
+    }
+
+    /** Начать сессию чата заново */
+    public Session reset(long chatId) {
+        Entry old = cache.get(chatId);
+        Entry e = old != null ? new Entry(new Session(), old.lock) : new Entry(new Session());
+        e.dirty = true;
+        cache.put(chatId, e);
+        return e.session;
+    }
+
+    public int size()       { return cache.size(); }
+    public long hits()      { return hits.sum(); }
+    public long loads()     { return loads.sum(); }
+    public long evictions() { return evictions.sum(); }
+    public long flushed()   { return flushed.sum(); }
+
+    /** Оценка памяти под сессии (по размеру последнего JSON), байт */
+    public long approxBytes() {
+        long sum = 0;
+        for (Entry e : cache.values()) sum += e.bytes;
+        return sum;
+    }
+
+    private Session load(long chatId) throws SQLException {
+        String json = pending.get(chatId);
+        if (json == null) {
+            json = db.read(c -> {
+                PreparedStatement ps = db.prepare(c, "SELECT data FROM chat_sessions WHERE chat_id=?");
+                ps.setLong(1, chatId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getString(1) : null;
+                }
+            });
+        }
+        if (json == null) return new Session();
+        loads.increment();
+        try {
+            return om.readValue(json, Session.class);
+        } catch (Exception ex) {
+            System.out.println("[SESSION] Broken session of " + chatId + ", starting over: " + ex.getMessage());
+            return new Session();
+        }
+    }
+
+    /** Сбросить изменённые, выгрузить простаивающие и лишние сверх maxEntries */
+    void maintain() {
+        try {
+            long now = System.nanoTime();
+            Map<Long, String> batch = new HashMap<>();
+            List<Map.Entry<Long, Entry>> live = new ArrayList<>();
+            for (Map.Entry<Long, Entry> me : cache.entrySet()) {
+                Entry e = me.getValue();
+                if (!e.lock.tryLock()) { live.add(me); continue; } // чат сейчас обрабатывается — снимем в следующий раз
+                try {
+                    snapshot(me.getKey(), e, batch);
+                    if (now - e.lastAccess > idleNanos) evict(me.getKey(), e, batch);
+                    else live.add(me);
+                } finally {
+                    e.lock.unlock();
+                }
+            }
+            if (live.size() > maxEntries) {
+                live.sort(Comparator.comparingLong(me -> me.getValue().lastAccess));
+                for (int i = 0; i < live.size() - maxEntries; i++) {
+                    Entry e = live.get(i).getValue();
+                    if (!e.lock.tryLock()) continue;
+                    try { evict(live.get(i).getKey(), e, batch); } finally { e.lock.unlock(); }
+                }
+            }
+            retry.forEach(batch::putIfAbsent); // свежий JSON из кэша важнее неудавшегося
+            boolean purge = retentionDays > 0 && now - lastPurgeAt > PURGE_EVERY_NANOS;
+            if (purge) lastPurgeAt = now;
+            flush(batch, purge);
+        } catch (Exception e) {
+            System.out.println("[SESSION] Maintenance failed: " + e.getMessage());
+        }
+    }
+
+    /** Снять изменённую сессию в пачку; вызывается под блокировкой чата */
+    private void snapshot(long chatId, Entry e, Map<Long, String> batch) {
+        if (!e.dirty) return;
+        String json = serialize(e);
+        if (json == null) return;
+        e.dirty = false;
+        batch.put(chatId, json);
+    }
+
+    /** Выгрузить под блокировкой чата: JSON попадает в pending до удаления из кэша, get() не прочтёт старую строку */
+    private void evict(long chatId, Entry e, Map<Long, String> batch) {
+        if (cache.get(chatId) != e) return;
+        snapshot(chatId, e, batch);
+        String json = batch.get(chatId);
+        if (json != null) pending.put(chatId, json);
+        cache.remove(chatId, e);
+        evictions.increment();
+    }
+
+    private String serialize(Entry e) {
+        try {
+            String json = om.writeValueAsString(e.session);
+            e.bytes = BASE_BYTES + json.length() * 2;
+            return json;
+        } catch (Exception ex) {
+            System.out.println("[SESSION] Serialize failed: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /** Записать пачку сессий одной мутацией; purge — заодно удалить сессии старше retentionDays */
+    private CompletableFuture<Integer> flush(Map<Long, String> batch, boolean purge) {
+        if (batch.isEmpty() && !purge) return CompletableFuture.completedFuture(0);
+        pending.putAll(batch);
+        CompletableFuture<Integer> f = writes.submit(c -> {
+            PreparedStatement ps = db.prepare(c, """
+                INSERT INTO chat_sessions(chat_id, data, updated_at) VALUES(?,?,CURRENT_TIMESTAMP)
+                ON CONFLICT(chat_id) DO UPDATE SET data=excluded.data, updated_at=excluded.updated_at
+            """);
+            for (Map.Entry<Long, String> me : batch.entrySet()) {
+                ps.setLong(1, me.getKey());
+                ps.setString(2, me.getValue());
+                ps.addBatch();
+            }
+            if (!batch.isEmpty()) ps.executeBatch();
+            if (purge) {
+                PreparedStatement del = db.prepare(c, "DELETE FROM chat_sessions WHERE updated_at < datetime('now', ?)");
+                del.setString(1, "-" + retentionDays + " days");
+                del.executeUpdate();
+            }
+            return batch.size();
+        });
+        f.whenComplete((n, err) -> {
+            if (err == null) {
+                batch.forEach(pending::remove); // remove(key, value): более свежий JSON остаётся
+                batch.keySet().forEach(retry::remove); // записан более свежий или тот же JSON
+                flushed.add(n);
+                return;
+            }
+            // не записалось: сессия в кэше снова изменённая, выгруженная остаётся в pending и повторится
+            batch.forEach((chatId, json) -> {
+                Entry cur = cache.get(chatId);
+                if (cur != null) {
+                    cur.dirty = true;
+                    pending.remove(chatId, json);
+                    retry.remove(chatId, json);
+                } else if (json.equals(pending.get(chatId))) {
+                    retry.put(chatId, json);
+                }
+            });
+        });
+        return f;
+    }
+
+    /** Сбросить всё несохранённое и дождаться коммита (при остановке) */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        Map<Long, String> batch = new HashMap<>(retry);
+        for (Map.Entry<Long, Entry> me : cache.entrySet()) {
+            Entry e = me.getValue();
+            boolean locked = false;
+            try {
+                locked = e.lock.tryLock(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            try { snapshot(me.getKey(), e, batch); } finally { if (locked) e.lock.unlock(); }
+        }
+        if (batch.isEmpty()) return;
+        try {
+            WriteQueue.await(flush(batch, false));
+        } catch (SQLException e) {
+            System.out.println("[SESSION] Final flush failed: " + e.getMessage());
+        }
+    }
+}
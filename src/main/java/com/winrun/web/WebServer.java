@@ -2,27 +2,44 @@ package com.winrun.web;
 
 import com.winrun.Config;
 import com.winrun.bot.WinrunBot;
+import com.winrun.integrations.LeadStatusSync;
 import com.winrun.integrations.RobokassaService;
+import com.winrun.metrics.Metrics;
 import com.winrun.model.Order;
 import com.winrun.repo.OrderRepo;
+import com.winrun.repo.OrderRepo.PaidResult;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.Javalin;
+import io.javalin.http.Context;
+import org.telegram.telegrambots.meta.api.objects.Update;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Optional;
 
 public class WebServer {
+    public static final String TELEGRAM_WEBHOOK_PATH = "/telegram/webhook";
+    public static final String BITRIX_EVENT_PATH = "/bitrix/event";
+
     private final Config cfg;
     private final RobokassaService rk;
+    private final LeadStatusSync statusSync;
     private final OrderRepo orders;
     private final WinrunBot bot;
+    private final Metrics metrics;
+    private final ObjectMapper om = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
-    public WebServer(Config cfg, RobokassaService rk, OrderRepo orders, WinrunBot bot){
-        this.cfg=cfg; this.rk=rk; this.orders=orders; this.bot=bot;
+    public WebServer(Config cfg, RobokassaService rk, LeadStatusSync statusSync, OrderRepo orders, WinrunBot bot, Metrics metrics){
+        this.cfg=cfg; this.rk=rk; this.statusSync=statusSync; this.orders=orders; this.bot=bot; this.metrics=metrics;
     }
 
     public void start(){
         Javalin app = Javalin.create(c -> c.showJavalinBanner = false).start(cfg.serverPort());
 
         app.get("/health", ctx -> ctx.result("OK"));
+        // Метрики наружу не отдаём: только по токену, как вебхуки
+        if (!cfg.metricsToken().isBlank()) app.get("/metrics", this::metrics);
 
         // Robokassa: технический result (сервер-сервер)
         app.get("/robokassa/result", ctx -> {
@@ -33,8 +50,14 @@ public class WebServer {
             try {
                 if (rk.verifyResult(outSum, invId, sig)){
                     long oid = Long.parseLong(invId);
-                    rk.markPaid(oid);
-                    orders.find(oid).ifPresent(o -> bot.notifyPaymentReceived(o.telegramId, o.id));
+                    PaidResult res = rk.markPaid(oid);
+                    // повторный колбэк по уже оплаченному заказу — без второго уведомления
+                    if (res == PaidResult.PAID || res == PaidResult.PAID_AFTER_EXPIRY) {
+                        orders.find(oid).ifPresent(o -> bot.notifyPaymentReceived(o.telegramId, o.id));
+                    } else if (res == PaidResult.NEEDS_REVIEW) {
+                        // оплату фиксируем (OK Robokassa), но заказ не принят — покупателю честно пишем про проверку
+                        orders.find(oid).ifPresent(o -> bot.notifyPaymentReview(o.telegramId, o.id));
+                    }
                     ctx.result("OK"+invId);
                 } else {
                     ctx.status(400).result("Invalid signature");
@@ -44,8 +67,61 @@ public class WebServer {
             }
         });
 
+        // Telegram webhook: отвечаем сразу, обработка уходит в диспетчер бота (тот же код, что и при поллинге)
+        if (cfg.webhookMode()) app.post(TELEGRAM_WEBHOOK_PATH, this::telegramUpdate);
+
+        // Bitrix: исходящий вебхук на изменение лида
+        if (!cfg.bitrixOutboundToken().isBlank()) app.post(BITRIX_EVENT_PATH, this::bitrixEvent);
+
         // Человеческие success/fail редиректы
         app.get("/robokassa/success", ctx -> ctx.result("Оплата принята, спасибо! Можете вернуться в Telegram."));
         app.get("/robokassa/fail", ctx -> ctx.result("Оплата не прошла или отменена."));
     }
-}
\ No newline at end of file
+
+    private void metrics(Context ctx) {
+        String auth = ctx.header("Authorization");
+        String got = auth != null && auth.startsWith("Bearer ") ? auth.substring(7).trim() : null;
+        if (got == null || !MessageDigest.isEqual(cfg.metricsToken().getBytes(StandardCharsets.UTF_8),
+                got.getBytes(StandardCharsets.UTF_8))) {
+            ctx.status(403).result("Forbidden");
+            return;
+        }
+        ctx.contentType("text/plain; charset=utf-8").result(metrics.render());
+    }
+
+    /**
+     * Событие Bitrix приходит формой: event, data[FIELDS][ID], auth[application_token].
+     * Отвечаем сразу — лид дочитывается и пишется в заказ в фоне.
+     */
+    private void bitrixEvent(Context ctx) {
+        String token = ctx.formParam("auth[application_token]");
+        if (token == null || !MessageDigest.isEqual(cfg.bitrixOutboundToken().getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8))) {
+            ctx.status(403).result("Forbidden");
+            return;
+        }
+        if ("ONCRMLEADUPDATE".equalsIgnoreCase(ctx.formParam("event"))) {
+            statusSync.onLeadUpdated(ctx.formParam("data[FIELDS][ID]"));
+        }
+        ctx.result("OK");
+    }
+
+    private void telegramUpdate(Context ctx) {
+        String secret = cfg.webhookSecret();
+        String got = ctx.header("X-Telegram-Bot-Api-Secret-Token");
+        if (secret.isBlank() || got == null
+                || !MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), got.getBytes(StandardCharsets.UTF_8))) {
+            ctx.status(403).result("Forbidden");
+            return;
+        }
+        Update update;
+        try {
+            update = om.readValue(ctx.bodyAsBytes(), Update.class);
+        } catch (Exception e) {
+            ctx.status(400).result("Bad update");
+            return;
+        }
+        bot.onUpdateReceived(update);
+        ctx.result("OK");
+    }
+}
@@ -0,0 +1,132 @@
+package com.winrun.bot;
+
+import com.winrun.bot.CallbackCodec.Op;
+import com.winrun.model.Product;
+import com.winrun.repo.ProductRepo;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Аллокации на один показ карточки: главное меню, клавиатура моделей, клавиатура размеров и подпись.
+ * «До» — сборка с нуля на каждый запрос, как было в WinrunBot; «после» — готовые объекты из RenderCache.
+ */
+class RenderCacheBenchmarkTest {
+    private static final int WARMUP = 20_000;
+    private static final int ROUNDS = 100_000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Object sink;
+
+    @Test
+    void cachedRenderAllocatesLess() throws Exception {
+        List<Product> catalog = catalog(6);
+        RenderCache cache = new RenderCache(new ProductRepo(null) {
+            @Override public List<Product> listActive() { return catalog; }
+        }, 4990);
+        Product p = catalog.get(2);
+
+        Runnable before = () -> {
+            sink = freshMainMenu();
+            sink = freshModelsKb(catalog);
+            sink = freshSizeKb(p);
+            sink = freshCaption(p, p.variants.get(1), 4990);
+        };
+        Runnable after = () -> {
+            try {
+                sink = RenderCache.MAIN_MENU;
+                sink = cache.modelsKb();
+                sink = cache.sizeKb(p);
+                sink = cache.caption(p, 1);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+
+        long perBefore = bytesPerRound(before);
+        long perAfter = bytesPerRound(after);
+        System.out.printf("[BENCH] card render: %d bytes/op rebuilt, %d bytes/op cached%n", perBefore, perAfter);
+        assertEquals(freshCaption(p, p.variants.get(1), 4990), cache.caption(p, 1));
+        assertEquals(1, cache.rebuilds());
+        assertTrue(perAfter * 10 < perBefore, "cache should cut allocation by an order of magnitude");
+    }
+
+    private static long bytesPerRound(Runnable r) {
+        for (int i = 0; i < WARMUP; i++) r.run();
+        long tid = Thread.currentThread().threadId();
+        long start = THREADS.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < ROUNDS; i++) r.run();
+        return (THREADS.getThreadAllocatedBytes(tid) - start) / ROUNDS;
+    }
+
+    private static List<Product> catalog(int n) {
+        List<Product> out = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            Product p = new Product();
+            p.id = i;
+            p.name = "Winrun Model " + i;
+            p.description = "Лёгкие беговые кроссовки, модель " + i;
+            p.sizes = List.of("40", "41", "42", "43", "44");
+            p.variants = new ArrayList<>();
+            for (String color : List.of("Чёрный", "Белый", "Серый")) {
+                Product.Variant v = new Product.Variant();
+                v.color = color;
+                v.image = "https://example.com/" + i + "/" + color + ".jpg";
+                p.variants.add(v);
+            }
+            out.add(p);
+        }
+        return List.copyOf(out);
+    }
+
+    /* ==== Сборка на каждый запрос, как до RenderCache ==== */
+
+    private static ReplyKeyboardMarkup freshMainMenu() {
+        ReplyKeyboardMarkup k = new ReplyKeyboardMarkup();
+        k.setResizeKeyboard(true);
+        KeyboardRow row1 = new KeyboardRow();
+        row1.add(new KeyboardButton("👟 Каталог"));
+        KeyboardRow row2 = new KeyboardRow();
+        row2.add(new KeyboardButton("📦 Мои заказы"));
+        KeyboardRow row3 = new KeyboardRow();
+        row3.add(new KeyboardButton("ℹ️ О коллекции"));
+        row3.add(new KeyboardButton("💬 Поддержка"));
+        k.setKeyboard(List.of(row1, row2, row3));
+        return k;
+    }
+
+    private static InlineKeyboardMarkup freshModelsKb(List<Product> products) {
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        List<InlineKeyboardButton> row = new ArrayList<>();
+        for (Product p : products) {
+            row.add(RenderCache.button(p.name, CallbackCodec.encode(Op.MODEL, p.id)));
+            if (row.size() == 2) { rows.add(row); row = new ArrayList<>(); }
+        }
+        if (!row.isEmpty()) rows.add(row);
+        return RenderCache.inline(rows);
+    }
+
+    private static InlineKeyboardMarkup freshSizeKb(Product p) {
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        for (String sz : p.sizes) rows.add(List.of(RenderCache.button(sz, CallbackCodec.encode(Op.SIZE, sz))));
+        return RenderCache.inline(rows);
+    }
+
+    private static String freshCaption(Product p, Product.Variant v, int price) {
+        return "*" + p.name + "*\n" +
+                (p.description == null || p.description.isBlank() ? "" : p.description + "\n") +
+                "Цвет: " + (v.color == null ? "-" : v.color) + "\n" +
+                "Цена: " + price + " ₽";
+    }
+}
@@ -0,0 +1,78 @@
+package com.winrun.bot;
+
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Нагрузка на диспетчер: p99 задержки апдейта при росте числа одновременных чатов.
+ * Обработчик «ходит в сеть» (спит), как execute() или вызов Bitrix; порядок внутри чата должен сохраняться,
+ * а медленный чат не должен задерживать остальные.
+ */
+class UpdateDispatcherLoadTest {
+    private static final int UPDATES_PER_CHAT = 5;
+    private static final long HANDLER_MS = 5;
+
+    @Test
+    void p99AcrossConcurrentChats() throws Exception {
+        for (int chats : new int[]{1, 10, 100, 1000}) {
+            Map<Long, List<Integer>> seen = new ConcurrentHashMap<>();
+            CountDownLatch done = new CountDownLatch(chats * UPDATES_PER_CHAT);
+            UpdateDispatcher d = new UpdateDispatcher(u -> {
+                Thread.sleep(HANDLER_MS);
+                seen.computeIfAbsent(u.getMessage().getChatId(), k -> new ArrayList<>()).add(u.getMessage().getMessageId());
+                done.countDown();
+            });
+
+            long start = System.nanoTime();
+            for (int i = 0; i < UPDATES_PER_CHAT; i++)
+                for (long chat = 1; chat <= chats; chat++) d.dispatch(update(chat, i));
+            assertTrue(done.await(30, TimeUnit.SECONDS), "updates not processed for " + chats + " chats");
+            long wallMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            System.out.printf("[BENCH] %4d chats: p50 %.1f ms, p99 %.1f ms, wall %d ms (sequential would be %d ms)%n",
+                    chats, d.latency().percentileMillis(0.50), d.latency().percentileMillis(0.99),
+                    wallMs, chats * UPDATES_PER_CHAT * HANDLER_MS);
+            for (List<Integer> ids : seen.values()) assertEquals(List.of(0, 1, 2, 3, 4), ids);
+        }
+    }
+
+    @Test
+    void slowChatDoesNotDelayOthers() throws Exception {
+        int fastChats = 50;
+        CountDownLatch fastDone = new CountDownLatch(fastChats);
+        CountDownLatch release = new CountDownLatch(1);
+        UpdateDispatcher d = new UpdateDispatcher(u -> {
+            if (u.getMessage().getChatId() == 0L) release.await(); // завис, например, на загрузке альбома
+            else fastDone.countDown();
+        });
+
+        d.dispatch(update(0L, 0));
+        d.dispatch(update(0L, 1));
+        long start = System.nanoTime();
+        for (long chat = 1; chat <= fastChats; chat++) d.dispatch(update(chat, 0));
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS), "fast chats waited behind the slow one");
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        release.countDown();
+        System.out.printf("[BENCH] %d fast chats served in %d ms while one chat was blocked%n", fastChats, ms);
+    }
+
+    private static Update update(long chatId, int messageId) {
+        Message m = new Message();
+        m.setChat(new Chat(chatId, "private"));
+        m.setMessageId(messageId);
+        Update u = new Update();
+        u.setMessage(m);
+        return u;
+    }
+}
@@ -0,0 +1,139 @@
+package com.winrun.db;
+
+import com.winrun.Config;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Пропускная способность: WAL-писатель + пул читателей против прежней схемы —
+ * одно соединение без WAL за synchronized, через которое идут и чтения, и записи.
+ * Нагрузка — «Мои заказы» (чтение по telegram_id) из нескольких потоков и поток вставок заказов.
+ */
+class DatabaseBenchmarkTest {
+    private static final int READERS = 4;
+    private static final int CHATS = 500;
+    private static final long RUN_MS = 700;
+
+    private static final String SELECT = "SELECT * FROM orders WHERE telegram_id=? ORDER BY created_at DESC LIMIT 10";
+    private static final String INSERT = "INSERT INTO orders(telegram_id, product_id, status, payment_status, amount) VALUES(?,1,'WAITING_PAYMENT','PENDING',100)";
+
+    /** Одна операция над соединением; соединение отдаёт сама схема */
+    private interface Access {
+        void read(SqlFn<Void> fn) throws SQLException;
+        void write(SqlFn<Void> fn) throws SQLException;
+    }
+
+    private Path dir;
+
+    @BeforeEach
+    void tempDir() throws Exception { dir = Files.createTempDirectory("winrun-bench"); }
+
+    @AfterEach
+    void cleanup() throws Exception {
+        try (var files = Files.list(dir)) { for (Path p : files.toList()) Files.deleteIfExists(p); }
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    void throughputAgainstSingleConnection() throws Exception {
+        Path legacyFile = dir.resolve("legacy.db");
+        Connection shared = DriverManager.getConnection("jdbc:sqlite:" + legacyFile);
+        Object lock = new Object();
+        Migrations.migrate(shared);
+        seed(shared);
+        Access legacy = new Access() {
+            public void read(SqlFn<Void> fn) throws SQLException { synchronized (lock) { fn.apply(shared); } }
+            public void write(SqlFn<Void> fn) throws SQLException { synchronized (lock) { fn.apply(shared); } }
+        };
+        long[] before = run(legacy);
+        shared.close();
+
+        Path pooledFile = dir.resolve("pooled.db");
+        Database db = new Database(new Config() {
+            @Override public String sqlitePath() { return pooledFile.toString(); }
+            @Override public int sqliteReaders() { return READERS; }
+        });
+        db.initSchema();
+        db.transaction(DatabaseBenchmarkTest::seed);
+        Access pooled = new Access() {
+            public void read(SqlFn<Void> fn) throws SQLException { db.read(fn); }
+            public void write(SqlFn<Void> fn) throws SQLException { db.write(fn); }
+        };
+        long[] after = run(pooled);
+        db.close();
+
+        System.out.printf("[BENCH] single connection: %d reads/s, %d writes/s%n", before[0], before[1]);
+        System.out.printf("[BENCH] WAL + %d readers:  %d reads/s, %d writes/s%n", READERS, after[0], after[1]);
+        assertTrue(after[0] > 0 && after[1] > 0, "pooled setup made no progress");
+        assertTrue(before[0] > 0 && before[1] > 0, "legacy setup made no progress");
+    }
+
+    private static Void seed(Connection c) throws SQLException {
+        try (PreparedStatement p = c.prepareStatement("INSERT OR IGNORE INTO products(id, name, price) VALUES(1,'bench',100)")) {
+            p.executeUpdate();
+        }
+        try (PreparedStatement ps = c.prepareStatement(INSERT)) {
+            for (int i = 0; i < CHATS * 4; i++) {
+                ps.setLong(1, i % CHATS);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        return null;
+    }
+
+    /** READERS потоков читают, один пишет; возвращает {чтений/с, записей/с} */
+    private static long[] run(Access a) throws Exception {
+        LongAdder reads = new LongAdder(), writes = new LongAdder();
+        List<Throwable> errors = new ArrayList<>();
+        long deadline = System.nanoTime() + RUN_MS * 1_000_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < READERS; t++) {
+            threads.add(Thread.ofPlatform().start(() -> loop(deadline, errors, () -> a.read(c -> {
+                try (PreparedStatement ps = c.prepareStatement(SELECT)) {
+                    ps.setLong(1, ThreadLocalRandom.current().nextInt(CHATS));
+                    try (ResultSet rs = ps.executeQuery()) { while (rs.next()) rs.getLong(1); }
+                }
+                reads.increment();
+                return null;
+            }))));
+        }
+        threads.add(Thread.ofPlatform().start(() -> loop(deadline, errors, () -> a.write(c -> {
+            try (PreparedStatement ps = c.prepareStatement(INSERT)) {
+                ps.setLong(1, ThreadLocalRandom.current().nextInt(CHATS));
+                ps.executeUpdate();
+            }
+            writes.increment();
+            return null;
+        }))));
+        for (Thread t : threads) t.join();
+        assertEquals(List.of(), errors);
+        double sec = RUN_MS / 1000.0;
+        return new long[]{ (long) (reads.sum() / sec), (long) (writes.sum() / sec) };
+    }
+
+    private interface Op { void run() throws SQLException; }
+
+    private static void loop(long deadline, List<Throwable> errors, Op op) {
+        try {
+            while (System.nanoTime() < deadline) op.run();
+        } catch (Throwable e) {
+            synchronized (errors) { errors.add(e); }
+        }
+    }
+}
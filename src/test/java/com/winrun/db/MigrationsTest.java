@@ -0,0 +1,53 @@
+package com.winrun.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Схема с нуля на временном файле SQLite: горячие запросы идут по индексам, без SCAN */
+class MigrationsTest {
+    private Path file;
+    private Connection c;
+
+    @BeforeEach
+    void open() throws Exception {
+        file = Files.createTempFile("winrun-migrations", ".db");
+        c = DriverManager.getConnection("jdbc:sqlite:" + file);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        c.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    void hotQueriesUseIndexes() throws Exception {
+        Migrations.migrate(c);
+        for (String q : Migrations.HOT_QUERIES) {
+            try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN " + q)) {
+                while (rs.next()) {
+                    String detail = rs.getString("detail");
+                    assertFalse(detail.startsWith("SCAN "), q + " -> " + detail);
+                }
+            }
+        }
+        assertEquals(List.of(), Migrations.fullScans(c));
+    }
+
+    @Test
+    void migrateIsIdempotent() throws Exception {
+        int first = Migrations.migrate(c);
+        assertEquals(first, Migrations.migrate(c));
+    }
+}